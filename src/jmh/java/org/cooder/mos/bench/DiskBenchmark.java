@@ -0,0 +1,46 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.IDisk;
+import org.cooder.mos.device.RamDisk;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 基准测试公共部分：同一组测试分别跑在临时文件磁盘和内存磁盘上
+ */
+@State(Scope.Benchmark)
+public abstract class DiskBenchmark {
+    @Param({"memory", "file"})
+    public String disk;
+
+    private File image;
+
+    protected IDisk createDisk() throws IOException {
+        if (disk.equals("file")) {
+            image = File.createTempFile("mos-bench", ".img");
+            image.deleteOnExit();
+            return new FileDisk(image.getPath());
+        }
+        return new RamDisk();
+    }
+
+    protected void deleteDisk() {
+        if (image != null) {
+            image.delete();
+            image = null;
+        }
+    }
+}
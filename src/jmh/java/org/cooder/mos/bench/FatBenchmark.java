@@ -0,0 +1,107 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cooder.mos.device.IDisk;
+import org.cooder.mos.fs.fat16.DirectoryTreeNode;
+import org.cooder.mos.fs.fat16.FAT16;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 直接针对{@link FAT16}的基准测试：碎片化卷上的簇分配、分散脏扇区的写回和逐级目录查找
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FatBenchmark extends DiskBenchmark {
+    private static final int FRAGMENTS = 20000;
+    private static final int DEPTH = 8;
+
+    private IDisk device;
+    private FAT16 fat;
+    private int[] allocated;
+    private String[] names;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        device = createDisk();
+        fat = new FAT16(device);
+        fat.format();
+
+        // allocate single clusters and free every other one, leaving the volume fragmented
+        allocated = new int[FRAGMENTS];
+        for (int i = 0; i < FRAGMENTS; i++) {
+            allocated[i] = fat.nextFreeCluster(-1);
+        }
+        for (int i = 0; i < FRAGMENTS; i += 2) {
+            fat.writeCluster(allocated[i], FAT16.FREE_CLUSTER);
+        }
+
+        names = new String[DEPTH];
+        DirectoryTreeNode parent = fat.root;
+        for (int i = 0; i < DEPTH; i++) {
+            names[i] = "dir" + i;
+            parent = fat.createTreeNode(parent, names[i], true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fat.close();
+        device.close();
+        deleteDisk();
+    }
+
+    @Benchmark
+    public int allocateFragmented() {
+        int c = fat.nextFreeCluster(-1);
+        fat.writeCluster(c, FAT16.FREE_CLUSTER);
+        return c;
+    }
+
+    @Benchmark
+    public void flushScattered() {
+        // dirty 16 sectors spread over the table, then write them back at once
+        fat.setCommitInterval(Long.MAX_VALUE);
+        for (int i = 0; i < 16; i++) {
+            int c = allocated[1 + 2 * ((next + i * 613) % (FRAGMENTS / 2))];
+            fat.writeCluster(c, fat.getEndOfChain());
+        }
+        next++;
+        fat.flush();
+        fat.setCommitInterval(0);
+    }
+
+    @Benchmark
+    public DirectoryTreeNode deepFind() {
+        DirectoryTreeNode node = fat.root;
+        for (String name : names) {
+            node = fat.findSubTreeNode(node, name);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import java.io.IOException;
+
+import org.cooder.mos.Utils;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.IFileSystem;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * 通过{@link FileSystem}单例进行的基准测试，每轮测试前挂载并格式化一块新磁盘
+ */
+public abstract class FileSystemBenchmark extends DiskBenchmark {
+    protected FileSystem fs;
+
+    @Setup(Level.Trial)
+    public void mount() throws IOException {
+        fs = FileSystem.instance;
+        fs.bootstrap(createDisk());
+        fs.format();
+        prepare();
+    }
+
+    @TearDown(Level.Trial)
+    public void unmount() throws IOException {
+        fs.shutdown();
+        deleteDisk();
+    }
+
+    /**
+     * 准备测试数据
+     */
+    protected abstract void prepare() throws IOException;
+
+    protected static String[] path(String path) {
+        return Utils.normalizePath(path);
+    }
+
+    protected void writeFile(String path, byte[] data, int chunk) throws IOException {
+        // the size hint lets an overwrite reuse the run it just freed instead of walking the volume
+        FileDescriptor fd = fs.open(path(path), IFileSystem.WRITE, data.length);
+        try {
+            for (int off = 0; off < data.length; off += chunk) {
+                fs.write(fd, data, off, Math.min(chunk, data.length - off));
+            }
+        } finally {
+            fs.close(fd);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.IFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 元数据操作：创建删除文件、深路径查找和列目录
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark extends FileSystemBenchmark {
+    private static final int LIST_SIZE = 1000;
+    private static final String DEEP = "/a/b/c/d/e/f/g/h/leaf";
+
+    private final byte[] payload = "0123456789abcdef".getBytes();
+    private String[] churn;
+    private String[] deep;
+    private FileDescriptor listDir;
+
+    @Override
+    protected void prepare() throws IOException {
+        for (int i = 0; i < LIST_SIZE; i++) {
+            writeFile("/list/f" + i, payload, payload.length);
+        }
+        writeFile(DEEP, payload, payload.length);
+        writeFile("/churn/keep", payload, payload.length);
+
+        churn = path("/churn/tmp");
+        deep = path(DEEP);
+        listDir = fs.find(path("/list"));
+    }
+
+    @Benchmark
+    public void createDelete() throws IOException {
+        FileDescriptor fd = fs.open(churn, IFileSystem.WRITE);
+        fs.write(fd, payload, 0, payload.length);
+        fs.close(fd);
+        fs.delete(fs.find(churn));
+    }
+
+    @Benchmark
+    public FileDescriptor deepLookup() {
+        return fs.find(deep);
+    }
+
+    @Benchmark
+    public String[] listDirectory() {
+        return fs.list(listDir);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.IFileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 文件读写吞吐：64KB块顺序读写4MB文件，4KB随机读写
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark extends FileSystemBenchmark {
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+    private static final int BLOCK = 4 * 1024;
+
+    private byte[] data;
+    private byte[] readBuffer;
+    private FileDescriptor random;
+    private ByteBuffer block;
+    private final Random rnd = new Random(42);
+
+    @Override
+    protected void prepare() throws IOException {
+        data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        readBuffer = new byte[CHUNK];
+        writeFile("/seq", data, CHUNK);
+        writeFile("/rand", data, CHUNK);
+
+        random = fs.open(path("/rand"), IFileSystem.READ_WRITE);
+        block = ByteBuffer.allocate(BLOCK);
+    }
+
+    @Benchmark
+    public void sequentialWrite() throws IOException {
+        writeFile("/out", data, CHUNK);
+    }
+
+    @Benchmark
+    public long sequentialRead() throws IOException {
+        FileDescriptor fd = fs.open(path("/seq"), IFileSystem.READ);
+        long total = 0;
+        try {
+            int n;
+            while ((n = fs.read(fd, readBuffer, 0, readBuffer.length)) > 0) {
+                total += n;
+            }
+        } finally {
+            fs.close(fd);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public void randomRead(Blackhole bh) throws IOException {
+        block.clear();
+        bh.consume(fs.read(random, block, randomOffset()));
+    }
+
+    @Benchmark
+    public int randomWrite() throws IOException {
+        block.clear();
+        return fs.write(random, block, randomOffset());
+    }
+
+    private long randomOffset() {
+        return (long) rnd.nextInt(FILE_SIZE / BLOCK) * BLOCK;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.cooder.mos.fs.fat16.DirectoryTreeNode;
+import org.junit.Test;
+
+/**
+ * 每个基准测试方法在内存磁盘上执行一次，检查准备的数据和操作结果，防止基准测试本身失效
+ */
+public class BenchmarkTest {
+
+    @Test
+    public void streamBenchmark() throws IOException {
+        StreamBenchmark b = new StreamBenchmark();
+        b.disk = "memory";
+        b.mount();
+        try {
+            assertEquals(4 * 1024 * 1024, b.sequentialRead());
+            b.sequentialWrite();
+            assertEquals(4 * 1024 * 1024, b.fs.find(FileSystemBenchmark.path("/out")).getFileSize());
+            assertEquals(4 * 1024, b.randomWrite());
+        } finally {
+            b.unmount();
+        }
+    }
+
+    @Test
+    public void metadataBenchmark() throws IOException {
+        MetadataBenchmark b = new MetadataBenchmark();
+        b.disk = "memory";
+        b.mount();
+        try {
+            b.createDelete();
+            assertNull(b.fs.find(FileSystemBenchmark.path("/churn/tmp")));
+            assertEquals("leaf", b.deepLookup().getName());
+            assertEquals(1000, b.listDirectory().length);
+        } finally {
+            b.unmount();
+        }
+    }
+
+    @Test
+    public void fatBenchmark() throws IOException {
+        FatBenchmark b = new FatBenchmark();
+        b.disk = "memory";
+        b.setup();
+        try {
+            int c = b.allocateFragmented();
+            assertTrue(c > 0);
+            b.flushScattered();
+
+            DirectoryTreeNode node = b.deepFind();
+            assertNotNull(node);
+            assertEquals("dir7", node.getName());
+        } finally {
+            b.tearDown();
+        }
+    }
+}
@@ -12,7 +12,9 @@ package org.cooder.mos;
 import org.apache.sshd.scp.server.ScpCommandFactory;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.cooder.mos.device.CachingDisk;
 import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.RamDisk;
 import org.cooder.mos.shell.MosScpFileOpener;
 import org.cooder.mos.shell.ShellFactoryImpl;
 
@@ -22,7 +24,21 @@ import java.io.IOException;
 public class App {
     public static  void main(String[] args) throws IOException {
 
-        MosSystem.fileSystem().bootstrap(new FileDisk("mos-disk"));
+        // -Dmos.ramdisk=<image> runs the volume in memory, loaded from and saved back to the image
+        String ramImage = System.getProperty("mos.ramdisk");
+        if (ramImage != null) {
+            MosSystem.fileSystem().bootstrap(new RamDisk(ramImage));
+        } else {
+            MosSystem.fileSystem().bootstrap(new CachingDisk(new FileDisk("mos-disk"), 8192), "mos-disk.journal");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                MosSystem.fileSystem().shutdown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+
         SshServer sshd = SshServer.setUpDefaultServer();
         sshd.setPort(22);
 
@@ -51,6 +67,5 @@ public class App {
                 e.printStackTrace();
             }
         }
-        MosSystem.fileSystem().shutdown();
     }
 }
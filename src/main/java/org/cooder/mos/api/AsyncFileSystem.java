@@ -0,0 +1,224 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.api;
+
+import org.cooder.mos.MosSystem;
+import org.cooder.mos.Utils;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.IFileSystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步文件接口，每个操作提交到有界的I/O线程池执行，返回{@link CompletableFuture}。
+ * <p>
+ * 线程池的等待队列满时，操作在调用者线程上同步执行完才返回（返回的future已完成），
+ * 提交速度因此被限制在I/O线程的处理能力之内，调用方可以流水线式地发起大量文件操作，
+ * 而不必为每个请求准备一个线程。{@link #close()}之后提交的操作以{@link RejectedExecutionException}异常完成。
+ * <p>
+ * 各操作之间没有顺序保证，即使针对同一个{@link FileDescriptor}：先后提交的{@code write(fd)}和{@code close(fd)}
+ * 可能同时在两个I/O线程上执行。有先后依赖的操作须由调用方串接，例如
+ * {@code afs.write(fd, src, 0).thenCompose(n -> afs.close(fd))}。
+ */
+public class AsyncFileSystem implements Closeable {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private final IFileSystem fs;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncFileSystem() {
+        this(MosSystem.fileSystem(), DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param fs        底层文件系统
+     * @param threads   I/O线程数
+     * @param queueSize 等待执行的操作数上限，超出时由提交者执行
+     */
+    public AsyncFileSystem(IFileSystem fs, int threads, int queueSize) {
+        this.fs = fs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new IoThreadFactory(), new BackPressurePolicy());
+    }
+
+    /**
+     * 打开文件，写模式下文件不存在时创建
+     */
+    public CompletableFuture<FileDescriptor> open(String path, int mode) {
+        return submit(() -> fs.open(Utils.normalizePath(path), mode));
+    }
+
+    /**
+     * 读取整个文件
+     */
+    public CompletableFuture<byte[]> readAll(String path) {
+        return submit(() -> {
+            FileDescriptor fd = fs.open(Utils.normalizePath(path), IFileSystem.READ);
+            try {
+                byte[] data = new byte[fd.getFileSize()];
+                int n = 0;
+                while (n < data.length) {
+                    int ret = fs.read(fd, data, n, data.length - n);
+                    if (ret < 0) {
+                        break;
+                    }
+                    n += ret;
+                }
+                return n == data.length ? data : Arrays.copyOf(data, n);
+            } finally {
+                fs.close(fd);
+            }
+        });
+    }
+
+    /**
+     * 以覆盖写方式写入整个文件，文件不存在时创建
+     */
+    public CompletableFuture<Void> writeAll(String path, byte[] data) {
+        return submit(() -> {
+            FileDescriptor fd = fs.open(Utils.normalizePath(path), IFileSystem.WRITE, data.length);
+            try {
+                fs.write(fd, data, 0, data.length);
+            } finally {
+                fs.close(fd);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从文件内的指定偏移读取，文件须以{@link IFileSystem#READ_WRITE}模式打开
+     *
+     * @return 实际读取的字节数，偏移不小于文件大小时为-1
+     */
+    public CompletableFuture<Integer> read(FileDescriptor fd, ByteBuffer dst, long position) {
+        return submit(() -> fs.read(fd, dst, position));
+    }
+
+    /**
+     * 写到文件内的指定偏移，文件须以{@link IFileSystem#READ_WRITE}模式打开
+     *
+     * @return 写入的字节数
+     */
+    public CompletableFuture<Integer> write(FileDescriptor fd, ByteBuffer src, long position) {
+        return submit(() -> fs.write(fd, src, position));
+    }
+
+    public CompletableFuture<Void> flush(FileDescriptor fd) {
+        return submit(() -> {
+            fs.flush(fd);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> close(FileDescriptor fd) {
+        return submit(() -> {
+            fs.close(fd);
+            return null;
+        });
+    }
+
+    /**
+     * 列出目录下的文件路径
+     */
+    public CompletableFuture<String[]> list(String path) {
+        return submit(() -> {
+            FileDescriptor dir = fs.find(Utils.normalizePath(path));
+            if (dir == null || !dir.isDir()) {
+                throw new IOException(path + ": Not a directory");
+            }
+            return fs.list(dir);
+        });
+    }
+
+    /**
+     * 删除文件
+     *
+     * @return 文件不存在时为false
+     */
+    public CompletableFuture<Boolean> delete(String path) {
+        return submit(() -> {
+            FileDescriptor fd = fs.find(Utils.normalizePath(path));
+            if (fd == null) {
+                return false;
+            }
+            fs.delete(fd);
+            return true;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(IoTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 不再接受新的操作，等待已提交的操作执行完
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 队列满时在调用者线程上执行，线程池关闭后拒绝
+     */
+    private static class BackPressurePolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("async file system closed");
+            }
+            r.run();
+        }
+    }
+
+    private interface IoTask<T> {
+        T call() throws IOException;
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final AtomicInteger seq = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "mos-io-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -28,6 +28,11 @@ public class FileInputStream extends InputStream {
         return MosSystem.fileSystem().read(fd);
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return MosSystem.fileSystem().read(fd, b, off, len);
+    }
+
     @Override
     public void close() throws IOException {
         MosSystem.fileSystem().close(fd);
@@ -19,10 +19,17 @@ public class FileOutputStream extends OutputStream {
     private final FileDescriptor fd;
 
     public FileOutputStream(MosFile file, int mode) throws IOException {
+        this(file, mode, 0);
+    }
+
+    /**
+     * @param size 预计写入的字节数，不大于0表示未知
+     */
+    public FileOutputStream(MosFile file, int mode, long size) throws IOException {
         if (file.isDir()) {
             throw new IOException(file.getName() + ": is a directory");
         }
-        fd = MosSystem.fileSystem().open(file.getPath(), mode);
+        fd = MosSystem.fileSystem().open(file.getPath(), mode, size);
     }
 
     @Override
@@ -31,6 +38,11 @@ public class FileOutputStream extends OutputStream {
         MosSystem.fileSystem().write(fd, d);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        MosSystem.fileSystem().write(fd, b, off, len);
+    }
+
     @Override
     public void flush() {
         MosSystem.fileSystem().flush(fd);
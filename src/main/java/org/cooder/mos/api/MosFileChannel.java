@@ -0,0 +1,135 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.api;
+
+import org.cooder.mos.MosSystem;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.IFileSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * 文件的随机读写通道，文件不存在时创建。
+ * <p>
+ * 除了基于当前位置的读写外，还支持不改变当前位置的按偏移读写，可以只更新大文件中的部分内容。
+ */
+public class MosFileChannel implements SeekableByteChannel {
+
+    private final FileDescriptor fd;
+    private long position = 0;
+    private boolean open = true;
+
+    public MosFileChannel(MosFile file) throws IOException {
+        if (file.isDir()) {
+            throw new IOException(file.getName() + ": is a directory");
+        }
+        fd = MosSystem.fileSystem().open(file.getPath(), IFileSystem.READ_WRITE);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    /**
+     * 从指定偏移读取，不改变当前位置
+     *
+     * @return 实际读取的字节数，偏移不小于文件大小时返回-1
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        return MosSystem.fileSystem().read(fd, dst, position);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int n = write(src, position);
+        position += n;
+        return n;
+    }
+
+    /**
+     * 写到指定偏移，不改变当前位置，偏移超过文件大小时中间以0填充
+     *
+     * @return 写入的字节数
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        ensureOpen();
+        return MosSystem.fileSystem().write(fd, src, position);
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized MosFileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position: " + newPosition);
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return MosSystem.fileSystem().size(fd);
+    }
+
+    @Override
+    public synchronized MosFileChannel truncate(long size) throws IOException {
+        ensureOpen();
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        MosSystem.fileSystem().truncate(fd, size);
+        if (position > size) {
+            position = size;
+        }
+        return this;
+    }
+
+    /**
+     * 将文件分配表和缓冲数据刷盘
+     */
+    public void force() throws IOException {
+        ensureOpen();
+        MosSystem.fileSystem().flush(fd);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            MosSystem.fileSystem().close(fd);
+        }
+    }
+
+    private synchronized void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import org.cooder.mos.fs.fat16.Layout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带LRU扇区缓存的磁盘装饰器。
+ * <p>
+ * 单扇区读写和元数据扇区读写经过缓存，写入采用写回策略，脏扇区在被淘汰或{@link #flush()}时写入底层磁盘；
+ * 其他多扇区读写用于搬运文件数据，在锁外直接访问底层磁盘，只在锁内与已缓存的扇区核对，不占用缓存。
+ * <p>
+ * 同一扇区上的元数据写入和文件数据写入不应并发进行，文件系统在释放目录簇之前已保证了这一点。
+ */
+public class CachingDisk implements IDisk {
+
+    private final IDisk disk;
+    private final int capacity;
+    private final LinkedHashMap<Integer, CachedSector> cache;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * 脏扇区写回底层磁盘的次数，锁外读取期间发生写回时需要重读
+     */
+    private long writebacks = 0;
+
+    /**
+     * 正在锁外写入底层磁盘的扇区范围，[起始扇区, 结束扇区)
+     */
+    private final List<int[]> writing = new ArrayList<int[]>();
+
+    /**
+     * @param disk     底层磁盘
+     * @param capacity 最多缓存的扇区数量
+     */
+    public CachingDisk(IDisk disk, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        this.disk = disk;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<Integer, CachedSector>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedSector> eldest) {
+                if (size() <= CachingDisk.this.capacity) {
+                    return false;
+                }
+
+                CachedSector sector = eldest.getValue();
+                if (sector.dirty) {
+                    CachingDisk.this.disk.writeSector(eldest.getKey(), sector.data);
+                    writebacks++;
+                }
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public int sectorCount() {
+        return disk.sectorCount();
+    }
+
+    @Override
+    public synchronized byte[] readSector(int sectorIdx) {
+        byte[] buffer = new byte[Layout.PER_SECTOR_SIZE];
+        readSector(sectorIdx, buffer);
+        return buffer;
+    }
+
+    @Override
+    public synchronized void readSector(int sectorIdx, byte[] buffer) {
+        CachedSector sector = cache.get(sectorIdx);
+        if (sector != null) {
+            hitCount++;
+        } else {
+            missCount++;
+            awaitWrites(sectorIdx, 1);
+            sector = new CachedSector(disk.readSector(sectorIdx));
+            cache.put(sectorIdx, sector);
+        }
+        System.arraycopy(sector.data, 0, buffer, 0, Layout.PER_SECTOR_SIZE);
+    }
+
+    @Override
+    public synchronized void writeSector(int sectorIdx, byte[] sectorData) {
+        CachedSector sector = cache.get(sectorIdx);
+        if (sector == null) {
+            sector = new CachedSector(new byte[Layout.PER_SECTOR_SIZE]);
+            cache.put(sectorIdx, sector);
+        }
+        System.arraycopy(sectorData, 0, sector.data, 0, Layout.PER_SECTOR_SIZE);
+        sector.dirty = true;
+    }
+
+    /**
+     * 在锁外读取底层磁盘，再用缓存中的副本覆盖，缓存中的副本总是最新的。
+     * 读取期间有脏扇区被写回时，读到的可能是写回前的旧数据，而那个扇区已不在缓存中，因此重读。
+     */
+    @Override
+    public void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        int start = buffer.position();
+        while (true) {
+            long generation;
+            synchronized (this) {
+                generation = writebacks;
+            }
+
+            buffer.position(start);
+            disk.readSectors(startSectorIdx, count, buffer);
+
+            synchronized (this) {
+                if (generation == writebacks) {
+                    overlay(startSectorIdx, count, buffer, start);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 先在锁内更新已缓存的副本，再在锁外写入底层磁盘
+     */
+    @Override
+    public void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        int[] range = new int[]{startSectorIdx, startSectorIdx + count};
+        synchronized (this) {
+            int start = buffer.position();
+            for (int i = 0; i < count; i++) {
+                CachedSector sector = cache.get(startSectorIdx + i);
+                if (sector != null) {
+                    ByteBuffer src = buffer.duplicate();
+                    src.position(start + i * Layout.PER_SECTOR_SIZE);
+                    src.get(sector.data);
+                    sector.dirty = false;
+                }
+            }
+            writing.add(range);
+        }
+
+        try {
+            disk.writeSectors(startSectorIdx, count, buffer);
+        } finally {
+            synchronized (this) {
+                writing.remove(range);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 经过缓存读取，未命中的扇区一次从底层磁盘读入并加入缓存
+     */
+    @Override
+    public synchronized void readMetadataSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        boolean complete = true;
+        for (int i = 0; i < count && complete; i++) {
+            complete = cache.containsKey(startSectorIdx + i);
+        }
+
+        if (complete) {
+            for (int i = 0; i < count; i++) {
+                buffer.put(cache.get(startSectorIdx + i).data);
+            }
+            hitCount += count;
+            return;
+        }
+
+        // 锁外的写入尚未落盘时读到的是旧数据，不能进入缓存
+        awaitWrites(startSectorIdx, count);
+        byte[] data = new byte[count * Layout.PER_SECTOR_SIZE];
+        disk.readSectors(startSectorIdx, count, ByteBuffer.wrap(data));
+        for (int i = 0; i < count; i++) {
+            CachedSector sector = cache.get(startSectorIdx + i);
+            if (sector != null) {
+                hitCount++;
+            } else {
+                missCount++;
+                sector = new CachedSector(Arrays.copyOfRange(data, i * Layout.PER_SECTOR_SIZE, (i + 1) * Layout.PER_SECTOR_SIZE));
+                cache.put(startSectorIdx + i, sector);
+            }
+            buffer.put(sector.data);
+        }
+    }
+
+    @Override
+    public synchronized void writeMetadataSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        byte[] sectorData = new byte[Layout.PER_SECTOR_SIZE];
+        for (int i = 0; i < count; i++) {
+            buffer.get(sectorData);
+            writeSector(startSectorIdx + i, sectorData);
+        }
+    }
+
+    private void overlay(int startSectorIdx, int count, ByteBuffer buffer, int start) {
+        for (int i = 0; i < count; i++) {
+            CachedSector sector = cache.get(startSectorIdx + i);
+            if (sector != null) {
+                ByteBuffer dst = buffer.duplicate();
+                dst.position(start + i * Layout.PER_SECTOR_SIZE);
+                dst.put(sector.data);
+            }
+        }
+    }
+
+    private void awaitWrites(int startSectorIdx, int count) {
+        boolean interrupted = false;
+        while (overlapsWriting(startSectorIdx, startSectorIdx + count)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean overlapsWriting(int from, int to) {
+        for (int[] range : writing) {
+            if (range[0] < to && from < range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 将所有脏扇区写入底层磁盘，连续的脏扇区合并为一次写入
+     */
+    @Override
+    public synchronized void flush() {
+        List<Map.Entry<Integer, CachedSector>> dirty = new ArrayList<Map.Entry<Integer, CachedSector>>();
+        for (Map.Entry<Integer, CachedSector> e : cache.entrySet()) {
+            if (e.getValue().dirty) {
+                dirty.add(e);
+            }
+        }
+        dirty.sort(Map.Entry.comparingByKey());
+
+        int i = 0;
+        while (i < dirty.size()) {
+            int j = i + 1;
+            while (j < dirty.size() && dirty.get(j).getKey() == dirty.get(j - 1).getKey() + 1) {
+                j++;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((j - i) * Layout.PER_SECTOR_SIZE);
+            for (int k = i; k < j; k++) {
+                CachedSector sector = dirty.get(k).getValue();
+                buffer.put(sector.data);
+                sector.dirty = false;
+            }
+            buffer.rewind();
+            disk.writeSectors(dirty.get(i).getKey(), j - i, buffer);
+            writebacks++;
+            i = j;
+        }
+        disk.flush();
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        cache.clear();
+        disk.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        cache.clear();
+        disk.close();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    private static class CachedSector {
+        final byte[] data;
+        boolean dirty;
+
+        CachedSector(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -12,17 +12,47 @@ import org.cooder.mos.fs.fat16.Layout;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
 
+/**
+ * 基于文件的磁盘实现。
+ * <p>
+ * 镜像文件是稀疏的：文件只增长到写过的最远位置，并按扇区记录哪些扇区写过，从未写过的扇区读出0且不访问磁盘，
+ * 清空磁盘只需截断文件。重新打开镜像时，文件中已有的扇区都视为写过。
+ */
 public class FileDisk implements IDisk {
 
     private RandomAccessFile raf;
+    private FileChannel channel;
+    private final long capacity;
+
+    /**
+     * 写过的扇区，访问时以自身为锁
+     */
+    private final BitSet written = new BitSet();
 
     public FileDisk(String path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param path     磁盘镜像路径
+     * @param capacity 磁盘容量，扇区大小的整数倍，不超过{@link IDisk#DEFAULT_CAPACITY}
+     */
+    public FileDisk(String path, long capacity) throws IOException {
+        if (capacity <= 0 || capacity > DEFAULT_CAPACITY || capacity % Layout.PER_SECTOR_SIZE != 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.capacity = capacity;
         raf = new RandomAccessFile(path, "rwd");
-        long capacity = capacity();
-        if (raf.length() != capacity) {
+        channel = raf.getChannel();
+        if (raf.length() > capacity) {
             raf.setLength(capacity);
         }
+        written.set(0, (int) ((raf.length() + sectorSize() - 1) / sectorSize()));
     }
 
     private int sectorSize() {
@@ -35,46 +65,101 @@ public class FileDisk implements IDisk {
     }
 
     private long capacity() {
-        return 2 * 1024 * 1024 * 1024L;  // 2G
+        return capacity;
     }
 
     @Override
     public void readSector(int sectorIdx, byte[] buffer) {
-        byte[] data = this.readSector(sectorIdx);
-        System.arraycopy(data, 0, buffer, 0, buffer.length);
+        readSectors(sectorIdx, 1, ByteBuffer.wrap(buffer, 0, sectorSize()));
     }
 
     @Override
     public byte[] readSector(int sectorIdx) {
         byte[] buffer = new byte[sectorSize()];
-        int pos = sectorIdx * sectorSize();
+        readSector(sectorIdx, buffer);
+        return buffer;
+    }
+
+    @Override
+    public void writeSector(int sectorIdx, byte[] sectorData) {
+        writeSectors(sectorIdx, 1, ByteBuffer.wrap(sectorData, 0, sectorSize()));
+    }
+
+    @Override
+    public void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        ByteBuffer buf = slice(buffer, count);
+        int size = buf.limit();
+        int end = startSectorIdx + count;
         try {
-            raf.seek(pos);
-            int ret = raf.read(buffer);
-            if (ret < 0) {
-                throw new IllegalStateException();
+            for (int i = startSectorIdx; i < end; ) {
+                int next;
+                boolean onDisk;
+                synchronized (written) {
+                    onDisk = written.get(i);
+                    next = onDisk ? written.nextClearBit(i) : written.nextSetBit(i);
+                }
+                next = next < 0 ? end : Math.min(next, end);
+                buf.limit((next - startSectorIdx) * sectorSize());
+                if (onDisk) {
+                    long pos = (long) startSectorIdx * sectorSize();
+                    while (buf.hasRemaining()) {
+                        if (channel.read(buf, pos + buf.position()) < 0) {
+                            fillZeros(buf);
+                        }
+                    }
+                } else {
+                    // never written, nothing to read
+                    fillZeros(buf);
+                }
+                i = next;
             }
-            return buffer;
+            buffer.position(buffer.position() + size);
         } catch (IOException e) {
-            throw new IllegalStateException();
+            throw new IllegalStateException(e);
         }
     }
 
     @Override
-    public void writeSector(int sectorIdx, byte[] sectorData) {
-        int pos = sectorIdx * sectorSize();
+    public void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        long pos = (long) startSectorIdx * sectorSize();
+        ByteBuffer buf = slice(buffer, count);
         try {
-            raf.seek(pos);
-            raf.write(sectorData);
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position());
+            }
+            buffer.position(buffer.position() + buf.limit());
+            synchronized (written) {
+                written.set(startSectorIdx, startSectorIdx + count);
+            }
         } catch (IOException e) {
-            throw new IllegalStateException();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ByteBuffer slice(ByteBuffer buffer, int count) {
+        ByteBuffer buf = buffer.slice();
+        buf.limit(count * sectorSize());
+        return buf;
+    }
+
+    private static void fillZeros(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int from = buf.arrayOffset() + buf.position();
+            Arrays.fill(buf.array(), from, from + buf.remaining(), (byte) 0);
+            buf.position(buf.limit());
+        } else {
+            while (buf.hasRemaining()) {
+                buf.put((byte) 0);
+            }
         }
     }
 
     @Override
     public void clear() throws IOException {
-        raf.setLength(0);
-        raf.setLength(capacity());
+        synchronized (written) {
+            raf.setLength(0);
+            written.clear();
+        }
     }
 
     @Override
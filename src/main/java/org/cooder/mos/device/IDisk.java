@@ -8,8 +8,11 @@
  */
 package org.cooder.mos.device;
 
+import org.cooder.mos.fs.fat16.Layout;
+
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface IDisk extends Closeable {
 
@@ -18,6 +21,11 @@ public interface IDisk extends Closeable {
 //     */
 //    int sectorSize();
 
+    /**
+     * 默认磁盘容量，也是FAT16卷支持的最大容量
+     */
+    long DEFAULT_CAPACITY = 2 * 1024 * 1024 * 1024L;  // 2G
+
     /**
      * 磁盘扇区数量
      */
@@ -53,6 +61,57 @@ public interface IDisk extends Closeable {
      */
     void writeSector(int sectorIdx, byte[] sectorData);
 
+    /**
+     * 从指定扇区开始连续读取多个扇区到buffer
+     *
+     * @param startSectorIdx 起始扇区索引
+     * @param count          扇区数量
+     * @param buffer         从当前position开始写入{@code count * sectorSize()}字节，调用后position相应后移
+     */
+    default void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        byte[] sectorData = new byte[Layout.PER_SECTOR_SIZE];
+        for (int i = 0; i < count; i++) {
+            readSector(startSectorIdx + i, sectorData);
+            buffer.put(sectorData);
+        }
+    }
+
+    /**
+     * 从指定扇区开始连续写入多个扇区
+     *
+     * @param startSectorIdx 起始扇区索引
+     * @param count          扇区数量
+     * @param buffer         从当前position开始读取{@code count * sectorSize()}字节，调用后position相应后移
+     */
+    default void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        byte[] sectorData = new byte[Layout.PER_SECTOR_SIZE];
+        for (int i = 0; i < count; i++) {
+            buffer.get(sectorData);
+            writeSector(startSectorIdx + i, sectorData);
+        }
+    }
+
+    /**
+     * 读取目录等元数据扇区，与{@link #readSectors(int, int, ByteBuffer)}相同，带缓存的磁盘会缓存这些扇区
+     */
+    default void readMetadataSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        readSectors(startSectorIdx, count, buffer);
+    }
+
+    /**
+     * 写入目录等元数据扇区，与{@link #writeSectors(int, int, ByteBuffer)}相同，带缓存的磁盘会缓存这些扇区
+     */
+    default void writeMetadataSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        writeSectors(startSectorIdx, count, buffer);
+    }
+
+    /**
+     * 将缓冲的数据写入底层存储
+     */
+    default void flush() {
+        // no-op
+    }
+
     /**
      * 清空磁盘数据
      *
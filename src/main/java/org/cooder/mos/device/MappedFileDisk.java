@@ -0,0 +1,244 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import org.cooder.mos.fs.fat16.Layout;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 基于内存映射的磁盘实现，磁盘镜像按段映射，扇区读写即内存拷贝。
+ * <p>
+ * 数据何时落盘由{@link #force()}决定，只有上次落盘后写过的段才会被写回；构造时指定{@code syncOnWrite}则每次写扇区后立即落盘。
+ */
+public class MappedFileDisk implements IDisk {
+
+    /**
+     * 每个映射段的大小，必须是扇区大小的整数倍
+     */
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * 上次落盘后被写过的段，落盘时只处理这些段
+     */
+    private final AtomicIntegerArray dirtySegments;
+    private final boolean syncOnWrite;
+    private final long capacity;
+
+    public MappedFileDisk(String path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * @param path        磁盘镜像路径
+     * @param syncOnWrite 是否每次写扇区后立即落盘
+     */
+    public MappedFileDisk(String path, boolean syncOnWrite) throws IOException {
+        this(path, DEFAULT_CAPACITY, syncOnWrite);
+    }
+
+    /**
+     * @param path        磁盘镜像路径
+     * @param capacity    磁盘容量，扇区大小的整数倍，不超过{@link IDisk#DEFAULT_CAPACITY}
+     * @param syncOnWrite 是否每次写扇区后立即落盘
+     */
+    public MappedFileDisk(String path, long capacity, boolean syncOnWrite) throws IOException {
+        if (capacity <= 0 || capacity > DEFAULT_CAPACITY || capacity % Layout.PER_SECTOR_SIZE != 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.raf = new RandomAccessFile(path, "rw");
+        this.channel = raf.getChannel();
+        this.syncOnWrite = syncOnWrite;
+
+        if (raf.length() != capacity) {
+            raf.setLength(capacity);
+        }
+
+        segments = map();
+        dirtySegments = new AtomicIntegerArray(segments.length);
+    }
+
+    private MappedByteBuffer[] map() throws IOException {
+        int count = (int) ((capacity + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE, capacity - start);
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+        return mapped;
+    }
+
+    private int sectorSize() {
+        return Layout.PER_SECTOR_SIZE;
+    }
+
+    @Override
+    public int sectorCount() {
+        return (int) (capacity() / sectorSize());
+    }
+
+    private long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void readSector(int sectorIdx, byte[] buffer) {
+        ByteBuffer segment = locate(sectorIdx);
+        segment.get(buffer, 0, sectorSize());
+    }
+
+    @Override
+    public byte[] readSector(int sectorIdx) {
+        byte[] buffer = new byte[sectorSize()];
+        readSector(sectorIdx, buffer);
+        return buffer;
+    }
+
+    @Override
+    public void writeSector(int sectorIdx, byte[] sectorData) {
+        ByteBuffer segment = locate(sectorIdx);
+        segment.put(sectorData, 0, sectorSize());
+        written(segmentOf(sectorIdx));
+    }
+
+    @Override
+    public void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        int sectorIdx = startSectorIdx, remaining = count;
+        while (remaining > 0) {
+            ByteBuffer segment = locate(sectorIdx);
+            int n = Math.min(remaining, segment.remaining() / sectorSize());
+            segment.limit(segment.position() + n * sectorSize());
+            buffer.put(segment);
+            sectorIdx += n;
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        int sectorIdx = startSectorIdx, remaining = count;
+        while (remaining > 0) {
+            ByteBuffer segment = locate(sectorIdx);
+            int n = Math.min(remaining, segment.remaining() / sectorSize());
+            ByteBuffer src = buffer.slice();
+            src.limit(n * sectorSize());
+            segment.put(src);
+            buffer.position(buffer.position() + n * sectorSize());
+            written(segmentOf(sectorIdx));
+            sectorIdx += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * 登记写入后的段，先写数据再登记，落盘时清除标记之后的写入会被再次登记
+     */
+    private void written(int segmentIdx) {
+        if (syncOnWrite) {
+            segments[segmentIdx].force();
+        } else {
+            dirtySegments.set(segmentIdx, 1);
+        }
+    }
+
+    /**
+     * 将上次落盘后写过的映射段写回磁盘镜像
+     */
+    public void force() {
+        MappedByteBuffer[] mapped = segments;
+        for (int i = 0; i < mapped.length; i++) {
+            if (dirtySegments.getAndSet(i, 0) != 0) {
+                mapped[i].force();
+            }
+        }
+    }
+
+    /**
+     * @return 上次落盘后写过的段数
+     */
+    int dirtySegmentCount() {
+        int n = 0;
+        for (int i = 0; i < dirtySegments.length(); i++) {
+            n += dirtySegments.get(i);
+        }
+        return n;
+    }
+
+    @Override
+    public void flush() {
+        force();
+    }
+
+    /**
+     * 截断镜像文件再重新映射，由文件系统回收数据页，不必把整个映射逐字节写0。
+     * 旧的映射在截断后不能再访问，调用期间不能有其他读写；不允许截断已映射文件的平台上退回到写0。
+     */
+    @Override
+    public synchronized void clear() throws IOException {
+        try {
+            raf.setLength(0);
+        } catch (IOException e) {
+            zero();
+            return;
+        }
+        raf.setLength(capacity);
+        segments = map();
+        for (int i = 0; i < dirtySegments.length(); i++) {
+            dirtySegments.set(i, 0);
+        }
+    }
+
+    private void zero() {
+        byte[] zeros = new byte[SEGMENT_SIZE / 64];
+        for (MappedByteBuffer segment : segments) {
+            ByteBuffer buf = segment.duplicate();
+            buf.clear();
+            while (buf.hasRemaining()) {
+                buf.put(zeros, 0, Math.min(zeros.length, buf.remaining()));
+            }
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+        raf.close();
+    }
+
+    private int segmentOf(int sectorIdx) {
+        return (int) ((long) sectorIdx * sectorSize() / SEGMENT_SIZE);
+    }
+
+    /**
+     * @return 定位到扇区起始位置的段视图，各线程互不影响
+     */
+    private ByteBuffer locate(int sectorIdx) {
+        if (sectorIdx < 0 || sectorIdx >= sectorCount()) {
+            throw new IllegalArgumentException("sector index out of range: " + sectorIdx);
+        }
+
+        long pos = (long) sectorIdx * sectorSize();
+        ByteBuffer buf = segments[(int) (pos / SEGMENT_SIZE)].duplicate();
+        buf.position((int) (pos % SEGMENT_SIZE));
+        return buf;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import org.cooder.mos.fs.fat16.Layout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 内存磁盘，数据保存在堆外内存中。
+ * <p>
+ * 容量按1MB分块，块在第一次写入时才分配，未写过的扇区读出0，实际占用的内存只与写过的数据量有关。
+ * 可以把内容保存为与{@link FileDisk}格式相同的磁盘镜像，也可以从镜像加载；
+ * 指定镜像路径创建时，启动时加载该镜像，关闭时写回。
+ */
+public class RamDisk implements IDisk {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final long capacity;
+    private final AtomicReferenceArray<ByteBuffer> chunks;
+
+    /**
+     * 关闭时写回的镜像路径，为null时关闭即丢弃数据
+     */
+    private final String imagePath;
+
+    public RamDisk() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 磁盘容量，扇区大小的整数倍，不超过{@link IDisk#DEFAULT_CAPACITY}
+     */
+    public RamDisk(long capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * 容量为{@link IDisk#DEFAULT_CAPACITY}
+     *
+     * @param imagePath 磁盘镜像路径，存在时加载，关闭时写回
+     */
+    public RamDisk(String imagePath) throws IOException {
+        this(imagePath, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param imagePath 磁盘镜像路径，存在时加载，关闭时写回
+     * @param capacity  磁盘容量，镜像超出容量的部分被忽略
+     */
+    public RamDisk(String imagePath, long capacity) throws IOException {
+        this(capacity, imagePath);
+        if (new File(imagePath).exists()) {
+            load(imagePath);
+        }
+    }
+
+    private RamDisk(long capacity, String imagePath) {
+        if (capacity <= 0 || capacity > DEFAULT_CAPACITY || capacity % Layout.PER_SECTOR_SIZE != 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.chunks = new AtomicReferenceArray<ByteBuffer>((int) ((capacity + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        this.imagePath = imagePath;
+    }
+
+    @Override
+    public int sectorCount() {
+        return (int) (capacity / Layout.PER_SECTOR_SIZE);
+    }
+
+    @Override
+    public byte[] readSector(int sectorIdx) {
+        byte[] buffer = new byte[Layout.PER_SECTOR_SIZE];
+        readSector(sectorIdx, buffer);
+        return buffer;
+    }
+
+    @Override
+    public void readSector(int sectorIdx, byte[] buffer) {
+        readSectors(sectorIdx, 1, ByteBuffer.wrap(buffer, 0, Layout.PER_SECTOR_SIZE));
+    }
+
+    @Override
+    public void writeSector(int sectorIdx, byte[] sectorData) {
+        writeSectors(sectorIdx, 1, ByteBuffer.wrap(sectorData, 0, Layout.PER_SECTOR_SIZE));
+    }
+
+    @Override
+    public void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        long pos = (long) startSectorIdx * Layout.PER_SECTOR_SIZE;
+        int remaining = count * Layout.PER_SECTOR_SIZE;
+        while (remaining > 0) {
+            int off = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(remaining, CHUNK_SIZE - off);
+            ByteBuffer chunk = chunks.get(chunkIndex(pos));
+            if (chunk != null) {
+                ByteBuffer src = chunk.duplicate();
+                src.limit(off + n).position(off);
+                buffer.put(src);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buffer.put((byte) 0);
+                }
+            }
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        long pos = (long) startSectorIdx * Layout.PER_SECTOR_SIZE;
+        int remaining = count * Layout.PER_SECTOR_SIZE;
+        while (remaining > 0) {
+            int off = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(remaining, CHUNK_SIZE - off);
+            ByteBuffer dst = chunk(chunkIndex(pos)).duplicate();
+            dst.position(off);
+
+            ByteBuffer src = buffer.slice();
+            src.limit(n);
+            dst.put(src);
+            buffer.position(buffer.position() + n);
+
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    private int chunkIndex(long pos) {
+        if (pos < 0 || pos >= capacity) {
+            throw new IllegalStateException("sector out of range: " + pos / Layout.PER_SECTOR_SIZE);
+        }
+        return (int) (pos / CHUNK_SIZE);
+    }
+
+    private ByteBuffer chunk(int idx) {
+        ByteBuffer chunk = chunks.get(idx);
+        if (chunk == null) {
+            chunks.compareAndSet(idx, null, ByteBuffer.allocateDirect(CHUNK_SIZE));
+            chunk = chunks.get(idx);
+        }
+        return chunk;
+    }
+
+    /**
+     * @return 已分配的内存字节数
+     */
+    public long allocatedBytes() {
+        long n = 0;
+        for (int i = 0; i < chunks.length(); i++) {
+            if (chunks.get(i) != null) {
+                n += CHUNK_SIZE;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 把磁盘内容保存为磁盘镜像，未分配的块在镜像中留空。
+     * <p>
+     * 先写到同一目录下的临时文件，落盘后原子地替换原镜像，中途失败时原镜像保持不变。
+     */
+    public void snapshot(String path) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw")) {
+                raf.setLength(capacity);
+                FileChannel channel = raf.getChannel();
+                for (int i = 0; i < chunks.length(); i++) {
+                    ByteBuffer chunk = chunks.get(i);
+                    if (chunk == null) {
+                        continue;
+                    }
+
+                    long pos = (long) i * CHUNK_SIZE;
+                    ByteBuffer src = chunk.duplicate();
+                    src.clear();
+                    src.limit((int) Math.min(CHUNK_SIZE, capacity - pos));
+                    while (src.hasRemaining()) {
+                        channel.write(src, pos + src.position());
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 从磁盘镜像加载内容，全0的块不分配内存
+     */
+    public void load(String path) throws IOException {
+        clear();
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = Math.min(channel.size(), capacity);
+            ByteBuffer block = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            for (long pos = 0; pos < size; pos += CHUNK_SIZE) {
+                block.clear();
+                block.limit((int) Math.min(CHUNK_SIZE, size - pos));
+                while (block.hasRemaining() && channel.read(block, pos + block.position()) >= 0) {
+                    // fill the block
+                }
+                block.flip();
+                if (isZero(block)) {
+                    continue;
+                }
+
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                chunk.put(block);
+                chunks.set(chunkIndex(pos), chunk);
+            }
+        }
+    }
+
+    private static boolean isZero(ByteBuffer block) {
+        for (int i = block.position(); i + 8 <= block.limit(); i += 8) {
+            if (block.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (int i = block.limit() & ~7; i < block.limit(); i++) {
+            if (block.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < chunks.length(); i++) {
+            chunks.set(i, null);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (imagePath != null) {
+            snapshot(imagePath);
+        }
+        clear();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cooder.mos.fs.fat16.DirectoryTreeNode;
+
+/**
+ * 完整路径到目录项节点的LRU缓存，同时缓存不存在的路径（负缓存）。
+ * <p>
+ * 负缓存项记录查找时路径上最深的已存在目录及其变更计数，目录中新建目录项后计数改变，负缓存项随之失效。
+ * 删除路径时需要失效对应的缓存项，格式化时清空缓存。
+ */
+class DentryCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, Dentry> cache;
+
+    DentryCache(int capacity) {
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<String, Dentry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Dentry> eldest) {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return 缓存项，未缓存时返回null
+     */
+    synchronized Dentry get(String path) {
+        Dentry dentry = cache.get(path);
+        if (dentry == null) {
+            return null;
+        }
+
+        boolean stale = dentry.isNegative()
+                // 目录中已新建目录项，或目录已被删除、复用
+                ? dentry.dir.getGeneration() != dentry.generation || !contains(dentry.dir, path)
+                // 节点已被删除或被复用
+                : !matches(dentry.node, path);
+        if (stale) {
+            cache.remove(path);
+            return null;
+        }
+        return dentry;
+    }
+
+    private static boolean contains(DirectoryTreeNode dir, String path) {
+        if (dir.isRoot()) {
+            return true;
+        }
+        return dir.valid() && path.startsWith(dir.getPath() + IFileSystem.separator);
+    }
+
+    private static boolean matches(DirectoryTreeNode node, String path) {
+        if (node.isRoot()) {
+            return true;
+        }
+        return node.valid() && path.endsWith(IFileSystem.separator + node.getName());
+    }
+
+    synchronized void put(String path, DirectoryTreeNode node) {
+        cache.put(path, new Dentry(node, null, 0));
+    }
+
+    /**
+     * 缓存不存在的路径
+     *
+     * @param dir        路径上最深的已存在目录
+     * @param generation 在该目录中查找之前读到的变更计数
+     */
+    synchronized void putNegative(String path, DirectoryTreeNode dir, int generation) {
+        cache.put(path, new Dentry(null, dir, generation));
+    }
+
+    synchronized void invalidate(String path) {
+        cache.remove(path);
+    }
+
+    synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * 路径数组前length个元素对应的缓存键，各级文件名按目录项的存储方式规范化
+     */
+    static String key(String[] paths, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(IFileSystem.separator).append(DirectoryTreeNode.canonicalName(paths[i]));
+        }
+        return sb.toString();
+    }
+
+    static class Dentry {
+        final DirectoryTreeNode node;
+
+        /**
+         * 负缓存项依赖的目录及其变更计数
+         */
+        final DirectoryTreeNode dir;
+        final int generation;
+
+        Dentry(DirectoryTreeNode node, DirectoryTreeNode dir, int generation) {
+            this.node = node;
+            this.dir = dir;
+            this.generation = generation;
+        }
+
+        boolean isNegative() {
+            return node == null;
+        }
+    }
+}
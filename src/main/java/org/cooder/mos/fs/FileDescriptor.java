@@ -9,9 +9,11 @@
 package org.cooder.mos.fs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.cooder.mos.Utils;
 import org.cooder.mos.fs.fat16.DirectoryTreeNode;
+import org.cooder.mos.fs.fat16.FatFileChannel;
 import org.cooder.mos.fs.fat16.FatFileInputStream;
 import org.cooder.mos.fs.fat16.FatFileOutputStream;
 
@@ -19,6 +21,7 @@ public class FileDescriptor {
     private final String[] paths;
     private FatFileInputStream fis;
     private FatFileOutputStream fos;
+    private FatFileChannel channel;
     final DirectoryTreeNode node;
 
     FileDescriptor(String[] paths, DirectoryTreeNode node) {
@@ -37,13 +40,44 @@ public class FileDescriptor {
         fos.write(b);
     }
 
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fos == null) {
+            throw new IllegalStateException();
+        }
+        fos.write(b, off, len);
+    }
+
     public void flush() {
-        fos.flush();
+        if (fos != null) {
+            fos.flush();
+        }
     }
 
     public void close() {
         Utils.close(fis);
         Utils.close(fos);
+        Utils.close(channel);
+    }
+
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException();
+        }
+        return channel.read(dst, position);
+    }
+
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException();
+        }
+        return channel.write(src, position);
+    }
+
+    public void truncate(long size) {
+        if (channel == null) {
+            throw new IllegalStateException();
+        }
+        channel.truncate(size);
     }
 
     public int read() throws IOException {
@@ -53,6 +87,13 @@ public class FileDescriptor {
         return fis.read();
     }
 
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (fis == null) {
+            throw new IllegalStateException();
+        }
+        return fis.read(b, off, len);
+    }
+
     public void setFatFileInputStream(FatFileInputStream fis) {
         this.fis = fis;
     }
@@ -61,6 +102,10 @@ public class FileDescriptor {
         this.fos = fos;
     }
 
+    public void setFatFileChannel(FatFileChannel channel) {
+        this.channel = channel;
+    }
+
     public boolean isRoot() {
         return node.isRoot();
     }
@@ -9,25 +9,48 @@
 package org.cooder.mos.fs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.cooder.mos.Utils;
 import org.cooder.mos.device.IDisk;
+import org.cooder.mos.fs.fat16.ClusterChain;
 import org.cooder.mos.fs.fat16.DirectoryTreeNode;
 import org.cooder.mos.fs.fat16.FAT16;
+import org.cooder.mos.fs.fat16.FatFileChannel;
 import org.cooder.mos.fs.fat16.FatFileInputStream;
 import org.cooder.mos.fs.fat16.FatFileOutputStream;
+import org.cooder.mos.fs.fat16.Fsck;
+import org.cooder.mos.fs.fat16.Geometry;
 import org.cooder.mos.fs.fat16.Layout;
+import org.cooder.mos.fs.fat16.MetadataJournal;
+
+import com.google.common.util.concurrent.Striped;
 
 public class FileSystem implements IFileSystem {
     public static final FileSystem instance = new FileSystem();
     
     private IDisk disk;
     private FAT16 fat;
-    private final Set<FileDescriptor> OPEN_FILES = new HashSet<FileDescriptor>();
+    private final Set<FileDescriptor> OPEN_FILES = ConcurrentHashMap.newKeySet();
+    private final DentryCache dentries = new DentryCache(4096);
+
+    /**
+     * 文件读写锁，按目录项节点分段：读操作共享，写入、截断、刷新、关闭和删除独占
+     */
+    private final Striped<ReadWriteLock> inodeLocks = Striped.readWriteLock(256);
+
+    /**
+     * 卷锁：打开文件、查找、列目录、删除和创建目录时共享，格式化和fsck修复时独占，
+     * 保证这期间没有其他读写，格式化可能重新映射磁盘，之前的映射不能再被访问
+     */
+    private final ReadWriteLock volumeLock = new ReentrantReadWriteLock();
     
     private FileSystem() {}
 
@@ -35,32 +58,141 @@ public class FileSystem implements IFileSystem {
     public void bootstrap(IDisk _disk) {
         disk = _disk;
         fat = new FAT16(disk);
+        dentries.clear();
+    }
+
+    @Override
+    public void bootstrap(IDisk _disk, String journalPath) throws IOException {
+        disk = _disk;
+        fat = new FAT16(disk, FAT16.DEFAULT_MIRROR_LAG_MILLIS, new MetadataJournal(journalPath, disk));
+        dentries.clear();
     }
     
     @Override
     public void shutdown() throws IOException {
+        // descriptors still open belong to this volume, write out their buffers and forget them
+        for (FileDescriptor fd : OPEN_FILES) {
+            close(fd);
+        }
         fat.close();
         disk.close();
     }
 
     @Override
     public void format() throws IOException {
-        disk.clear();
-        fat.format();
+        formatVolume(null);
+    }
+
+    @Override
+    public void format(Geometry geometry) throws IOException {
+        formatVolume(geometry);
+    }
+
+    /**
+     * @param geometry 卷的几何参数，null表示按磁盘大小选择
+     */
+    private void formatVolume(Geometry geometry) throws IOException {
+        Lock lock = volumeLock.writeLock();
+        lock.lock();
+        try {
+            if (!OPEN_FILES.isEmpty()) {
+                throw new IllegalStateException(OPEN_FILES.size() + " open files, close them before format");
+            }
+            disk.clear();
+            if (geometry != null) {
+                fat.format(geometry);
+            } else {
+                fat.format();
+            }
+            dentries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Geometry geometry() {
+        return fat.geometry();
+    }
+    
+    @Override
+    public long totalSpace() {
+        return (long) fat.dataClusterCount() * fat.geometry().clusterSize;
+    }
+
+    @Override
+    public long freeSpace() {
+        return (long) fat.freeClusterCount() * fat.geometry().clusterSize;
+    }
+    
+    /**
+     * 检查文件系统一致性。修复会丢弃已加载的目录项节点，因此要求没有打开的文件，
+     * 并在修复期间阻止打开文件、删除和创建目录
+     *
+     * @param repair 是否修复发现的问题
+     * @throws IllegalStateException 修复时仍有打开的文件
+     */
+    public Fsck.Report fsck(boolean repair) {
+        Fsck fsck = new Fsck(fat);
+        if (!repair) {
+            Lock lock = volumeLock.readLock();
+            lock.lock();
+            try {
+                return fsck.check();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Lock lock = volumeLock.writeLock();
+        lock.lock();
+        try {
+            if (!OPEN_FILES.isEmpty()) {
+                throw new IllegalStateException(OPEN_FILES.size() + " open files, close them before repair");
+            }
+            Fsck.Report report = fsck.repair();
+            if (report.repaired) {
+                dentries.clear();
+            }
+            return report;
+        } finally {
+            lock.unlock();
+        }
     }
     
     @Override
     public FileDescriptor find(String[] paths) {
-        DirectoryTreeNode node = findEntryNode(paths);
-        if (node == null) {
-            return null;
+        Lock lock = volumeLock.readLock();
+        lock.lock();
+        try {
+            DirectoryTreeNode node = findEntryNode(paths);
+            if (node == null) {
+                return null;
+            }
+
+            return new FileDescriptor(paths, node);
+        } finally {
+            lock.unlock();
         }
-        
-        return new FileDescriptor(paths, node);
     }
     
     @Override
     public FileDescriptor open(String[] paths, int mode) throws IOException {
+        return open(paths, mode, 0);
+    }
+
+    @Override
+    public FileDescriptor open(String[] paths, int mode, long sizeHint) throws IOException {
+        Lock lock = volumeLock.readLock();
+        lock.lock();
+        try {
+            return openFile(paths, mode, sizeHint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private FileDescriptor openFile(String[] paths, int mode, long sizeHint) throws IOException {
         FileDescriptor descriptor = null;
         DirectoryTreeNode node = findEntryNode(paths);
         if (mode == READ) {
@@ -68,13 +200,31 @@ public class FileSystem implements IFileSystem {
                 throw new IOException("No such file or directory");
             }
             descriptor = new FileDescriptor(paths, node);
-            descriptor.setFatFileInputStream(createFatFileInputStream(descriptor));
+            Lock lock = readLock(descriptor);
+            lock.lock();
+            try {
+                descriptor.setFatFileInputStream(createFatFileInputStream(descriptor));
+            } finally {
+                lock.unlock();
+            }
+        } else if (mode == READ_WRITE) {
+            if (node == null) {
+                node = createEntry(paths);
+            }
+            descriptor = new FileDescriptor(paths, node);
+            descriptor.setFatFileChannel(new FatFileChannel(disk, fat, node));
         } else {
             if (node == null) {
                 node = createEntry(paths);
             }
             descriptor = new FileDescriptor(paths, node);
-            descriptor.setFatFileOutputStream(createFatFileOutputStream(descriptor, mode));
+            Lock lock = writeLock(descriptor);
+            lock.lock();
+            try {
+                descriptor.setFatFileOutputStream(createFatFileOutputStream(descriptor, mode, sizeHint));
+            } finally {
+                lock.unlock();
+            }
         }
 
         OPEN_FILES.add(descriptor);
@@ -83,45 +233,161 @@ public class FileSystem implements IFileSystem {
 
     @Override
     public int read(FileDescriptor fd) throws IOException {
-        return fd.read();
+        Lock lock = readLock(fd);
+        lock.lock();
+        try {
+            return fd.read();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(FileDescriptor fd, byte[] b, int off, int len) throws IOException {
+        Lock lock = readLock(fd);
+        lock.lock();
+        try {
+            return fd.read(b, off, len);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void write(FileDescriptor fd, int b) throws IOException {
-        fd.write(b);
+        Lock lock = writeLock(fd);
+        lock.lock();
+        try {
+            fd.write(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(FileDescriptor fd, byte[] b, int off, int len) throws IOException {
+        Lock lock = writeLock(fd);
+        lock.lock();
+        try {
+            fd.write(b, off, len);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public int read(FileDescriptor fd, ByteBuffer dst, long position) throws IOException {
+        Lock lock = readLock(fd);
+        lock.lock();
+        try {
+            return fd.read(dst, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int write(FileDescriptor fd, ByteBuffer src, long position) throws IOException {
+        Lock lock = writeLock(fd);
+        lock.lock();
+        try {
+            return fd.write(src, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long size(FileDescriptor fd) {
+        return fd.getFileSize();
+    }
+
+    @Override
+    public void truncate(FileDescriptor fd, long size) {
+        Lock lock = writeLock(fd);
+        lock.lock();
+        try {
+            fd.truncate(size);
+        } finally {
+            lock.unlock();
+        }
     }
     
     @Override
     public void delete(FileDescriptor fd) {
-        deleteTreeNode(fd.node);
+        Lock volume = volumeLock.readLock();
+        volume.lock();
+        Lock lock = writeLock(fd);
+        lock.lock();
+        try {
+            deleteTreeNode(fd.node);
+        } finally {
+            lock.unlock();
+            volume.unlock();
+        }
     }
     
     @Override
     public void flush(FileDescriptor fdDescriptor) {
-        fdDescriptor.flush();
+        Lock lock = writeLock(fdDescriptor);
+        lock.lock();
+        try {
+            fdDescriptor.flush();
+        } finally {
+            lock.unlock();
+        }
+        fat.flush();
+        disk.flush();
     }
 
     @Override
     public void close(FileDescriptor fdDescriptor) {
-        fdDescriptor.close();
+        Lock lock = writeLock(fdDescriptor);
+        lock.lock();
+        try {
+            fdDescriptor.close();
+        } finally {
+            lock.unlock();
+        }
         OPEN_FILES.remove(fdDescriptor);
     }
+
+    private Lock readLock(FileDescriptor fd) {
+        return inodeLocks.get(fd.node).readLock();
+    }
+
+    private Lock writeLock(FileDescriptor fd) {
+        return inodeLocks.get(fd.node).writeLock();
+    }
     
     @Override
     public FileDescriptor createDirectory(FileDescriptor parent, String name) {
-        DirectoryTreeNode node = fat.createTreeNode(parent.node, name, true);
-        return new FileDescriptor(Utils.normalizePath(node.getPath()), node);
+        Lock lock = volumeLock.readLock();
+        lock.lock();
+        try {
+            DirectoryTreeNode node = fat.createTreeNode(parent.node, name, true);
+            dentries.invalidate(node.getPath());
+            return new FileDescriptor(Utils.normalizePath(node.getPath()), node);
+        } finally {
+            lock.unlock();
+        }
     }
     
     @Override
     public String[] list(FileDescriptor parent) {
-        fat.loadEntries(parent.node);
-
         List<String> list = new ArrayList<String>();
-        DirectoryTreeNode[] nodes = parent.node.getChildren();
+        DirectoryTreeNode[] nodes;
+        Lock lock = volumeLock.readLock();
+        lock.lock();
+        try {
+            nodes = fat.loadEntries(parent.node);
+        } finally {
+            lock.unlock();
+        }
         for (DirectoryTreeNode s : nodes) {
             if (s.valid()) {
                 list.add(s.getPath());
+                dentries.put(s.getPath(), s);
             }
         }
         return list.toArray(new String[0]);
@@ -136,81 +402,117 @@ public class FileSystem implements IFileSystem {
             return fat.root;
         }
 
-        DirectoryTreeNode parent = fat.root;
+        String key = DentryCache.key(paths, paths.length);
+        DentryCache.Dentry dentry = dentries.get(key);
+        if (dentry != null) {
+            return dentry.node;
+        }
+
+        // resolve from the deepest cached ancestor
+        int depth = paths.length - 1;
+        DirectoryTreeNode parent = null;
+        while (depth > 0 && parent == null) {
+            dentry = dentries.get(DentryCache.key(paths, depth));
+            if (dentry != null && dentry.isNegative()) {
+                dentries.putNegative(key, dentry.dir, dentry.generation);
+                return null;
+            }
+            if (dentry != null) {
+                parent = dentry.node;
+            } else {
+                depth--;
+            }
+        }
+        if (parent == null) {
+            parent = fat.root;
+        }
+
         DirectoryTreeNode entry = null;
-        for (String name : paths) {
-            entry = fat.findSubTreeNode(parent, name);
+        for (int i = depth; i < paths.length; i++) {
+            // read before the lookup, a create racing with it makes the negative entry stale at once
+            int generation = parent.getGeneration();
+            entry = fat.findSubTreeNode(parent, paths[i]);
             if (entry == null) {
+                dentries.putNegative(DentryCache.key(paths, i + 1), parent, generation);
+                if (i < paths.length - 1) {
+                    dentries.putNegative(key, parent, generation);
+                }
                 return null;
             }
+            dentries.put(DentryCache.key(paths, i + 1), entry);
             parent = entry;
         }
         return entry;
     }
     
     private void deleteTreeNode(DirectoryTreeNode node) {
-        if (node.isDir() && !fat.isEmpty(node)) {
-            throw new IllegalStateException("directory not empty.");
-        }
-        
-        // remove file data
-        if (!node.isDir()) {
-            int clusterIdx = node.getEntry().startingCluster;
-            fat.markFreeFrom(clusterIdx);
-            fat.writeCluster(clusterIdx, FAT16.FREE_CLUSTER);
-        }
-        
+        // the emptiness check for directories happens inside removeTreeNode, under the directory's lock
+        String path = node.getPath();
         fat.removeTreeNode(node);
+        dentries.invalidate(path);
     }
 
     private DirectoryTreeNode createEntry(String[] paths) {
         DirectoryTreeNode parent = fat.root;
         DirectoryTreeNode entry = null;
         for (int i = 0; i < paths.length; i++) {
-            String name = paths[i];
-            entry = fat.findSubTreeNode(parent, name);
-            if (entry == null) {
-                boolean isDir = i < paths.length - 1;
-                entry = fat.createTreeNode(parent, name, isDir);
-            }
+            boolean isDir = i < paths.length - 1;
+            entry = fat.findOrCreateTreeNode(parent, paths[i], isDir);
+            dentries.put(DentryCache.key(paths, i + 1), entry);
             parent = entry;
         }
         return entry;
     }
 
     private FatFileInputStream createFatFileInputStream(FileDescriptor fd) {
+        ClusterChain chain = fat.clusterChain(fd.node);
+        if (chain.length() > 0) {
+            return new FatFileInputStream(disk, fat, chain, fd.getFileSize());
+        }
+
         int clusterIdx = fd.getStartingCluster();
-        int sectorIdx = Layout.getClusterDataStartSector(clusterIdx);
+        int sectorIdx = fat.geometry().clusterStartSector(clusterIdx);
         return new FatFileInputStream(disk, fat, clusterIdx, sectorIdx, fd.getFileSize());
     }
 
-    private FatFileOutputStream createFatFileOutputStream(FileDescriptor fd, int mode) {
+    private FatFileOutputStream createFatFileOutputStream(FileDescriptor fd, int mode, long sizeHint) {
+        Geometry geometry = fat.geometry();
         int clusterIdx = fd.getStartingCluster();
         if (mode == WRITE) {
             // clear file content
             fat.markFreeFrom(clusterIdx);
             fat.writeCluster(clusterIdx, fat.getEndOfChain());
+            fd.node.invalidateClusterChain();
             fd.node.setFileSize(0);
             fat.writeDirectoryTreeNode(fd.node);
+
+            // reserve contiguous clusters for the expected content, the stream releases what it does not use
+            long clusters = (sizeHint + geometry.clusterSize - 1) / geometry.clusterSize;
+            if (clusters > 1 && clusters - 1 <= fat.freeClusterCount()) {
+                fat.allocateContiguous(clusterIdx, (int) (clusters - 1));
+            }
             
-            int sectorIdx = Layout.getClusterDataStartSector(clusterIdx);
+            int sectorIdx = geometry.clusterStartSector(clusterIdx);
             return new FatFileOutputStream(disk, fat, clusterIdx, sectorIdx, 0, fd.node);
         
         } else if (mode == APPEND) {
-            int lastClusterIdx = fat.lastClusterFrom(clusterIdx);
-            int clusterCount = fat.clusterCountFrom(clusterIdx);
+            ClusterChain chain = fat.clusterChain(fd.node);
             int fileSize = fd.getFileSize();
+            int index = chain.indexOf(fileSize);
             
-            // cluster chain full, alloc next cluster
-            if (clusterCount*Layout.PER_CLUSTER_SIZE == fileSize) {
-                int next = fat.nextFreeCluster(lastClusterIdx);
-                lastClusterIdx = next;
+            int lastClusterIdx;
+            if (index < chain.length()) {
+                lastClusterIdx = chain.get(index);
+            } else {
+                // cluster chain full, alloc next cluster
+                lastClusterIdx = fat.nextFreeCluster(chain.last());
+                chain.append(lastClusterIdx);
             }
             
-            int offset = fileSize % Layout.PER_CLUSTER_SIZE;
+            int offset = fileSize % geometry.clusterSize;
             int sectors = offset / Layout.PER_SECTOR_SIZE;
             int pos = offset % Layout.PER_SECTOR_SIZE;
-            int sectorIdx = Layout.getClusterDataStartSector(lastClusterIdx) + sectors;
+            int sectorIdx = geometry.clusterStartSector(lastClusterIdx) + sectors;
 
             return new FatFileOutputStream(disk, fat, lastClusterIdx, sectorIdx, pos, fd.node);
         }
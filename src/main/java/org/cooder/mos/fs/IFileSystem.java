@@ -9,8 +9,10 @@
 package org.cooder.mos.fs;
 
 import org.cooder.mos.device.IDisk;
+import org.cooder.mos.fs.fat16.Geometry;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface IFileSystem {
 
@@ -32,19 +34,51 @@ public interface IFileSystem {
     void bootstrap(IDisk disk);
 
     /**
-     * 关闭文件系统
+     * 启动文件系统，FAT和目录项的修改先写入元数据日志，挂载时重放日志中已提交的修改
+     *
+     * @param disk
+     * @param journalPath 元数据日志文件路径
+     * @throws IOException
+     */
+    void bootstrap(IDisk disk, String journalPath) throws IOException;
+
+    /**
+     * 关闭文件系统，仍然打开的文件先被关闭
      *
      * @throws IOException
      */
     void shutdown() throws IOException;
 
     /**
-     * 格式化
+     * 格式化，有打开的文件时抛出{@link IllegalStateException}
      *
      * @throws IOException
      */
     void format() throws IOException;
 
+    /**
+     * 按指定的几何参数格式化，有打开的文件时抛出{@link IllegalStateException}
+     *
+     * @param geometry 卷的几何参数
+     * @throws IOException
+     */
+    void format(Geometry geometry) throws IOException;
+
+    /**
+     * @return 当前卷的几何参数
+     */
+    Geometry geometry();
+
+    /**
+     * @return 文件系统数据区总字节数
+     */
+    long totalSpace();
+
+    /**
+     * @return 文件系统数据区空闲字节数
+     */
+    long freeSpace();
+
     //
     // 文件操作
     //
@@ -64,6 +98,11 @@ public interface IFileSystem {
      */
     int APPEND = 2;
 
+    /**
+     * 随机读写模式，按文件内偏移读写
+     */
+    int READ_WRITE = 3;
+
     /**
      * @param paths
      * @return
@@ -81,6 +120,17 @@ public interface IFileSystem {
      */
     FileDescriptor open(String[] paths, int mode) throws IOException;
 
+    /**
+     * 打开一个指定文件，并提示即将写入的数据大小
+     *
+     * @param paths    除去路径分隔符的文件路径
+     * @param mode     文件打开模式
+     * @param sizeHint 预计写入的字节数，覆盖写模式下据此预分配连续簇，不大于0表示未知
+     * @return 文件描述符
+     * @throws IOException
+     */
+    FileDescriptor open(String[] paths, int mode, long sizeHint) throws IOException;
+
     /**
      * 关闭一个指定文件
      *
@@ -98,6 +148,18 @@ public interface IFileSystem {
      */
     int read(FileDescriptor fd) throws IOException;
 
+    /**
+     * 读取最多len个字节到b中
+     *
+     * @param fd  文件描述符
+     * @param b   目标字节数组
+     * @param off 写入b的起始位置
+     * @param len 最多读取的字节数
+     * @return 实际读取的字节数, 或当到达文件末尾时返回 <code>-1</code>
+     * @throws IOException
+     */
+    int read(FileDescriptor fd, byte[] b, int off, int len) throws IOException;
+
     /**
      * 往文件里写入一个字节
      *
@@ -107,6 +169,53 @@ public interface IFileSystem {
      */
     void write(FileDescriptor fd, int b) throws IOException;
 
+    /**
+     * 往文件里写入b中从off开始的len个字节
+     *
+     * @param fd  文件描述符
+     * @param b   待写入的数据
+     * @param off 数据起始位置
+     * @param len 写入的字节数
+     * @throws IOException
+     */
+    void write(FileDescriptor fd, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * 从文件内的指定偏移读取数据，文件须以{@link #READ_WRITE}模式打开
+     *
+     * @param fd       文件描述符
+     * @param dst      目标缓冲区
+     * @param position 文件内偏移
+     * @return 实际读取的字节数, 或当偏移不小于文件大小时返回 <code>-1</code>
+     * @throws IOException
+     */
+    int read(FileDescriptor fd, ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * 将数据写到文件内的指定偏移，超出文件末尾时扩展文件，文件须以{@link #READ_WRITE}模式打开
+     *
+     * @param fd       文件描述符
+     * @param src      待写入的数据
+     * @param position 文件内偏移
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    int write(FileDescriptor fd, ByteBuffer src, long position) throws IOException;
+
+    /**
+     * @param fd 文件描述符
+     * @return 文件大小
+     */
+    long size(FileDescriptor fd);
+
+    /**
+     * 将文件截断到指定大小，文件须以{@link #READ_WRITE}模式打开
+     *
+     * @param fd   文件描述符
+     * @param size 新的文件大小，不小于当前大小时不做修改
+     */
+    void truncate(FileDescriptor fd, long size);
+
     /**
      * 将缓冲数据刷盘
      *
@@ -0,0 +1,104 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.util.Arrays;
+
+/**
+ * 文件簇链的数组索引，按序号O(1)定位文件中任意偏移所在的簇。
+ * <p>
+ * 由{@link IFAT16#clusterChain(DirectoryTreeNode)}遍历FAT建立并缓存在目录项节点上，
+ * 文件追加簇时同步追加，截断或删除时失效。
+ */
+public class ClusterChain {
+    private final int clusterSize;
+    private int[] clusters;
+    private int length;
+
+    private ClusterChain(int clusterSize, int[] clusters, int length) {
+        this.clusterSize = clusterSize;
+        this.clusters = clusters;
+        this.length = length;
+    }
+
+    /**
+     * 从起始簇开始遍历FAT建立簇链
+     */
+    static ClusterChain build(IFAT16 fat, int startClusterIdx) {
+        int[] clusters = new int[16];
+        int length = 0;
+        int idx = startClusterIdx;
+        while (fat.isDataCluster(idx)) {
+            if (length == clusters.length) {
+                clusters = Arrays.copyOf(clusters, length * 2);
+            }
+            clusters[length++] = idx;
+            idx = fat.readCluster(idx);
+        }
+        return new ClusterChain(fat.geometry().clusterSize, clusters, length);
+    }
+
+    /**
+     * @return 簇链长度
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param index 簇在链中的序号，从0开始
+     * @return 簇索引
+     */
+    public int get(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("cluster " + index + " of " + length);
+        }
+        return clusters[index];
+    }
+
+    /**
+     * @return 最后一个簇索引
+     */
+    public int last() {
+        return get(length - 1);
+    }
+
+    /**
+     * @param offset 文件内偏移
+     * @return 偏移所在簇在链中的序号
+     */
+    public int indexOf(long offset) {
+        return (int) (offset / clusterSize);
+    }
+
+    /**
+     * 追加一个已链接到链尾的簇
+     */
+    public void append(int clusterIdx) {
+        if (length == clusters.length) {
+            clusters = Arrays.copyOf(clusters, length * 2);
+        }
+        clusters[length++] = clusterIdx;
+    }
+
+    /**
+     * 丢弃指定簇之后的部分
+     *
+     * @return 簇不在链中时返回false
+     */
+    boolean truncateAfter(int clusterIdx) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (clusters[i] == clusterIdx) {
+                length = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -11,27 +11,65 @@ package org.cooder.mos.fs.fat16;
 import org.cooder.mos.fs.IFileSystem;
 import org.cooder.mos.fs.fat16.Layout.DirectoryEntry;
 
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class DirectoryTreeNode {
     private DirectoryEntry entry;
     public final DirectoryTreeNode parent;
-    private DirectoryTreeNode[] children;
+    private List<DirectoryTreeNode> children;
+    private Map<String, DirectoryTreeNode> index;
+    private ArrayDeque<DirectoryTreeNode> freeNodes;
     private int sectorIdx = -1;
     private int sectorOffset = -1;
     private boolean fold = true;
 
+    /**
+     * 子目录按簇逐个加载：已加载的最后一个簇，以及簇链是否已全部加载
+     */
+    private int loadedCluster = -1;
+    private boolean complete = false;
+
+    /**
+     * 文件簇链索引缓存，截断或删除时置空
+     */
+    private volatile ClusterChain chain;
+
+    /**
+     * 变更计数，目录中新建目录项或节点本身被删除时递增，在目录锁内修改
+     */
+    private volatile int generation = 0;
+
     DirectoryTreeNode(DirectoryTreeNode parent, DirectoryEntry entry) {
         this.parent = parent;
         this.entry = entry;
     }
 
     public DirectoryTreeNode[] getChildren() {
-        return children;
+        return children == null ? null : children.toArray(new DirectoryTreeNode[children.size()]);
     }
 
-    void setChildren(DirectoryTreeNode[] children) {
-        this.children = children;
+    /**
+     * 追加新加载的一批目录项
+     */
+    void addChildren(List<DirectoryTreeNode> nodes) {
+        if (children == null) {
+            this.children = new ArrayList<DirectoryTreeNode>(nodes.size());
+            this.index = new HashMap<String, DirectoryTreeNode>();
+            this.freeNodes = new ArrayDeque<DirectoryTreeNode>();
+        }
+
+        children.addAll(nodes);
+        for (DirectoryTreeNode child : nodes) {
+            if (child.isFree()) {
+                freeNodes.add(child);
+            } else {
+                index.putIfAbsent(child.getName(), child);
+            }
+        }
     }
 
     int getSectorIdx() {
@@ -50,10 +88,45 @@ public class DirectoryTreeNode {
         this.sectorOffset = sectorOffset;
     }
 
+    int getLoadedCluster() {
+        return loadedCluster;
+    }
+
+    void setLoadedCluster(int clusterIdx) {
+        this.loadedCluster = clusterIdx;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    void markComplete() {
+        this.complete = true;
+    }
+
     public DirectoryEntry getEntry() {
         return entry;
     }
 
+    public int getStartingCluster() {
+        return entry.startingCluster & 0xFFFF;
+    }
+
+    ClusterChain getClusterChain() {
+        return chain;
+    }
+
+    void setClusterChain(ClusterChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * 簇链被截断或重建后丢弃缓存的簇链索引
+     */
+    public void invalidateClusterChain() {
+        this.chain = null;
+    }
+
     public boolean isDir() {
         return isRoot() || ((entry.attrs & DirectoryEntry.ATTR_MASK_DIR) != 0);
     }
@@ -62,6 +135,13 @@ public class DirectoryTreeNode {
         return entry == null;
     }
 
+    /**
+     * @return 变更计数，与之前读到的值不同说明目录内容或节点本身已变化
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
     boolean isFold() {
         return fold;
     }
@@ -70,8 +150,16 @@ public class DirectoryTreeNode {
         this.fold = false;
     }
 
+    /**
+     * 丢弃已加载的子目录项，下次访问时重新从磁盘加载
+     */
     public void fold() {
         this.fold = true;
+        this.children = null;
+        this.index = null;
+        this.freeNodes = null;
+        this.loadedCluster = -1;
+        this.complete = false;
     }
 
     public String getName() {
@@ -108,19 +196,14 @@ public class DirectoryTreeNode {
             return null;
         }
 
-        DirectoryTreeNode node = null;
-        for (DirectoryTreeNode child : children) {
-            node = child;
-            if (nameEquals(node.entry, name)) {
-                return node;
-            }
-        }
-
-        return null;
+        return index.get(canonicalName(name));
     }
 
-    private static boolean nameEquals(DirectoryEntry entry, String fileName) {
-        return Arrays.equals(entry.fileName, string2ByteArray(fileName, DirectoryEntry.FILE_NAME_LENGTH));
+    /**
+     * 与目录项中存储的文件名一致的规范名：截断到{@link DirectoryEntry#FILE_NAME_LENGTH}字节
+     */
+    public static String canonicalName(String name) {
+        return byteArray2String(string2ByteArray(name, DirectoryEntry.FILE_NAME_LENGTH));
     }
 
     private static byte[] string2ByteArray(String name, int length) {
@@ -141,14 +224,23 @@ public class DirectoryTreeNode {
         return sb.toString();
     }
 
+    /**
+     * @return 新建的目录项节点，已加载的簇中没有空闲目录项时返回null
+     */
     DirectoryTreeNode create(String name, boolean isDir) {
         DirectoryTreeNode node = nextFreeNode();
+        if (node == null) {
+            return null;
+        }
+
         DirectoryEntry entry = node.entry;
 
         byte[] b = string2ByteArray(name, DirectoryEntry.FILE_NAME_LENGTH);
         System.arraycopy(b, 0, entry.fileName, 0, b.length);
         entry.attrs |= isDir ? DirectoryEntry.ATTR_MASK_DIR : 0;
         node.setWriteTime(System.currentTimeMillis());
+        index.put(node.getName(), node);
+        generation++;
 
         return node;
     }
@@ -166,14 +258,7 @@ public class DirectoryTreeNode {
             return null;
         }
 
-        DirectoryTreeNode node = null;
-        for (DirectoryTreeNode child : children) {
-            node = child;
-            if (!node.isFree()) {
-                return node;
-            }
-        }
-        return null;
+        return index.isEmpty() ? null : index.values().iterator().next();
     }
 
     private DirectoryTreeNode nextFreeNode() {
@@ -189,14 +274,7 @@ public class DirectoryTreeNode {
             return null;
         }
 
-        DirectoryTreeNode node = null;
-        for (DirectoryTreeNode child : children) {
-            node = child;
-            if (node.isFree()) {
-                return node;
-            }
-        }
-        return null;
+        return freeNodes.poll();
     }
 
     private boolean isFree() {
@@ -208,9 +286,15 @@ public class DirectoryTreeNode {
     }
 
     void reset() {
-        this.fold = true;
+        if (parent != null && parent.index != null && parent.index.get(getName()) == this) {
+            parent.index.remove(getName());
+            parent.freeNodes.push(this);
+        }
+
         this.entry = new DirectoryEntry();
-        this.children = null;
+        this.chain = null;
+        this.generation++;
+        fold();
     }
 
     public void setFileSize(int fileSize) {
@@ -8,33 +8,124 @@
  */
 package org.cooder.mos.fs.fat16;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
 
 import org.cooder.mos.device.IDisk;
 import org.cooder.mos.fs.fat16.Layout.DirectoryEntry;
 
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+
 public class FAT16 implements IFAT16 {
-    public static final int FAT_SIZE = Layout.SECTORS_PER_FAT * Layout.PER_SECTOR_SIZE / 2;
-    
     public static final int FREE_CLUSTER = 0x0000;
     public static final int END_OF_CHAIN = 0xFFF8;
+
+    /**
+     * FAT16允许的最大数据簇索引，更大的值被保留
+     */
+    public static final int MAX_DATA_CLUSTER = 0xFFEF;
     
+    private static final int ENTRIES_PER_SECTOR = Layout.PER_SECTOR_SIZE / 2;
+
+    /**
+     * 第二份FAT落后于主FAT的最长时间（毫秒）
+     */
+    public static final long DEFAULT_MIRROR_LAG_MILLIS = 1000;
+
     private final IDisk disk;
-    private final int[] table = new int[FAT_SIZE];
+
+    /**
+     * 卷的几何参数，挂载和格式化时从引导扇区读出
+     */
+    private volatile Geometry geometry;
+
+    /**
+     * 簇表，读簇链无需加锁；修改只发生在对象监视器内，由分配和释放操作相互协调
+     */
+    private volatile AtomicIntegerArray table;
     public final DirectoryTreeNode root = new DirectoryTreeNode(null, null);
 
+    /**
+     * 已修改但尚未写回磁盘的FAT扇区
+     */
+    private final BitSet dirtySectors = new BitSet();
+
+    /**
+     * 簇占用位图，头部簇和FAT16保留的簇值区间视为已占用
+     */
+    private final BitSet usedClusters = new BitSet();
+    private volatile int freeClusterCount = 0;
+
+    /**
+     * next-fit分配游标，下一次从这里开始查找空闲簇
+     */
+    private int allocCursor;
+
+    /**
+     * FAT提交间隔（毫秒），0表示每次修改后立即提交
+     */
+    private long commitIntervalMillis = 0;
+    private long lastCommitTime = 0;
+
+    /**
+     * 目录锁，按目录节点分段。目录的加载、查找、增删以及目录项写回都在所属目录的锁内进行
+     */
+    private final Striped<Lock> directoryLocks = Striped.lock(64);
+
+    /**
+     * 挂载时两份FAT不一致而被修复的扇区数
+     */
+    private int reconciledSectors = 0;
+
+    private final FatMirror mirror;
+
+    /**
+     * 元数据日志，为null时元数据直接写回原位置
+     */
+    private final MetadataJournal journal;
+
     public FAT16(IDisk disk) {
+        this(disk, DEFAULT_MIRROR_LAG_MILLIS, null);
+    }
+
+    /**
+     * @param mirrorLagMillis 第二份FAT落后于主FAT的最长时间（毫秒）
+     */
+    public FAT16(IDisk disk, long mirrorLagMillis) {
+        this(disk, mirrorLagMillis, null);
+    }
+
+    /**
+     * @param mirrorLagMillis 第二份FAT落后于主FAT的最长时间（毫秒）
+     * @param journal         元数据日志，挂载前先重放其中已提交的事务
+     */
+    public FAT16(IDisk disk, long mirrorLagMillis, MetadataJournal journal) {
         this.disk = disk;
+        this.journal = journal;
+        if (journal != null) {
+            journal.recover();
+        }
         reload();
+        this.mirror = new FatMirror(disk, this, mirrorLagMillis);
     }
 
     //
     // File Allocation Table Methods
     //
     
+    @Override
+    public Geometry geometry() {
+        return geometry;
+    }
+
     @Override
     public int getEndOfChain() {
         return 0xFFF8;
@@ -42,122 +133,437 @@ public class FAT16 implements IFAT16 {
 
     @Override
     public synchronized int nextFreeCluster(int preCluster) {
-        for (int i = Layout.HEAD_CLUSTER_COUNT; i < FAT_SIZE; i++) {
-            if (table[i] == 0) {
-                writeCluster(i, getEndOfChain());
-                writeCluster(preCluster, i);
-                return i;
-            }
+        int i = findFreeCluster();
+        if (i < 0) {
+            return -1;
         }
-        return -1;
+
+        setCluster(i, getEndOfChain());
+        setCluster(preCluster, i);
+        commit();
+        allocCursor = i + 1;
+        return i;
+    }
+
+    @Override
+    public synchronized int allocateContiguous(int preCluster, int count) {
+        if (count <= 0 || count > freeClusterCount) {
+            return -1;
+        }
+
+        int start = -1;
+        if (preCluster >= geometry.headClusterCount && isFreeRun(preCluster + 1, count)) {
+            start = preCluster + 1;
+        }
+        if (start < 0) {
+            start = findFreeRun(allocCursor, count);
+        }
+        if (start < 0) {
+            start = findFreeRun(geometry.headClusterCount, count);
+        }
+        if (start < 0) {
+            return -1;
+        }
+
+        int last = start + count - 1;
+        for (int i = start; i < last; i++) {
+            setCluster(i, i + 1);
+        }
+        setCluster(last, getEndOfChain());
+        setCluster(preCluster, start);
+        commit();
+        allocCursor = last + 1;
+        return start;
+    }
+
+    @Override
+    public int freeClusterCount() {
+        return freeClusterCount;
+    }
+
+    @Override
+    public int dataClusterCount() {
+        return geometry.dataClusterCount();
+    }
+
+    /**
+     * 从分配游标开始查找空闲簇，到达末尾后回绕
+     *
+     * @return 空闲簇索引，没有空闲簇时返回-1
+     */
+    private int findFreeCluster() {
+        if (freeClusterCount == 0) {
+            return -1;
+        }
+
+        int max = geometry.maxDataCluster;
+        int i = usedClusters.nextClearBit(allocCursor);
+        if (i > max) {
+            i = usedClusters.nextClearBit(geometry.headClusterCount);
+        }
+        return i > max ? -1 : i;
     }
 
     @Override
     public synchronized void markFreeFrom(int clusterIdx) {
+        if (isReserved(clusterIdx)) {
+            return;
+        }
+
         int idx = clusterIdx;
-        int v = table[idx];
-        while (v != getEndOfChain()) {
+        int v = table.get(idx);
+        while (isDataCluster(v)) {
             idx = v;
-            v = table[idx];
-            table[idx] = FREE_CLUSTER;
+            v = table.get(idx);
+            setCluster(idx, FREE_CLUSTER);
         }
         
         if (idx != clusterIdx) {
-            table[idx] = FREE_CLUSTER;
+            setCluster(idx, FREE_CLUSTER);
         }
+        commit();
     }
 
     @Override
-    public synchronized int lastClusterFrom(int clusterIdx) {
-        if (clusterIdx < Layout.HEAD_CLUSTER_COUNT) {
+    public int lastClusterFrom(int clusterIdx) {
+        if (isReserved(clusterIdx)) {
             throw new IllegalStateException();
         }
         
+        // lock-free walk, stop at anything that is not a data cluster
+        AtomicIntegerArray t = table;
         int idx = clusterIdx;
-        int v = table[idx];
-        while (v != getEndOfChain()) {
+        int v = t.get(idx);
+        while (!isReserved(v)) {
             idx = v;
-            v = table[idx];
+            v = t.get(idx);
         }
         return idx;
     }
     
     @Override
-    public synchronized int clusterCountFrom(int clusterIdx) {
-        if (clusterIdx < Layout.HEAD_CLUSTER_COUNT) {
+    public int clusterCountFrom(int clusterIdx) {
+        if (isReserved(clusterIdx)) {
             throw new IllegalStateException();
         }
         
+        AtomicIntegerArray t = table;
         int idx = clusterIdx;
-        int v = table[idx], count = 1;
-        while (v != getEndOfChain()) {
+        int v = t.get(idx), count = 1;
+        while (!isReserved(v)) {
             idx = v;
-            v = table[idx];
+            v = t.get(idx);
             count++;
         }
         return count;
     }
 
     @Override
-    public synchronized int readCluster(int clusterIdx) {
-        return table[clusterIdx];
+    public int readCluster(int clusterIdx) {
+        AtomicIntegerArray t = table;
+        return clusterIdx < t.length() ? t.get(clusterIdx) : FREE_CLUSTER;
+    }
+
+    @Override
+    public ClusterChain clusterChain(DirectoryTreeNode node) {
+        ClusterChain chain = node.getClusterChain();
+        if (chain == null) {
+            chain = ClusterChain.build(this, node.getStartingCluster());
+            node.setClusterChain(chain);
+        }
+        return chain;
     }
 
     @Override
     public synchronized void writeCluster(int clusterIdx, int valueToWrite) {
         if (clusterIdx < 0) return;
         
-        table[clusterIdx] = valueToWrite;
-        flush();
+        setCluster(clusterIdx, valueToWrite);
+        commit();
+    }
+
+    /**
+     * 设置FAT提交间隔，间隔内的修改只在内存中累积，到期后一次写回所有脏扇区，没有新的修改时由后台线程按时写回
+     *
+     * @param millis 提交间隔（毫秒），0表示每次修改后立即提交
+     */
+    public synchronized void setCommitInterval(long millis) {
+        this.commitIntervalMillis = Math.max(0, millis);
+        commit();
+    }
+
+    private void setCluster(int clusterIdx, int valueToWrite) {
+        // reserved entries, and anything past the table, are never written
+        if (isReserved(clusterIdx)) return;
+
+        table.set(clusterIdx, valueToWrite);
+        dirtySectors.set(clusterIdx / ENTRIES_PER_SECTOR);
+
+        boolean used = valueToWrite != FREE_CLUSTER;
+        if (used != usedClusters.get(clusterIdx)) {
+            usedClusters.set(clusterIdx, used);
+            freeClusterCount += used ? -1 : 1;
+        }
+    }
+
+    private boolean isFreeRun(int from, int count) {
+        int end = from + count;
+        return end <= geometry.maxDataCluster + 1 && usedClusters.nextSetBit(from) >= end;
+    }
+
+    /**
+     * 从指定位置开始查找第一段长度不小于count的连续空闲簇
+     *
+     * @return 起始簇索引，不存在时返回-1
+     */
+    private int findFreeRun(int from, int count) {
+        int i = usedClusters.nextClearBit(from);
+        while (i + count - 1 <= geometry.maxDataCluster) {
+            int end = usedClusters.nextSetBit(i);
+            if (end < 0) {
+                end = geometry.maxDataCluster + 1;
+            }
+            if (end - i >= count) {
+                return i;
+            }
+            i = usedClusters.nextClearBit(end);
+        }
+        return -1;
+    }
+
+    private boolean isReserved(int clusterIdx) {
+        Geometry g = geometry;
+        return clusterIdx < g.headClusterCount || clusterIdx > g.maxDataCluster;
+    }
+
+    @Override
+    public boolean isDataCluster(int clusterIdx) {
+        return !isReserved(clusterIdx);
+    }
+
+    private void buildFreeBitmap() {
+        int size = geometry.fatEntries;
+        usedClusters.clear();
+        for (int i = 0; i < size; i++) {
+            if (isReserved(i) || table.get(i) != FREE_CLUSTER) {
+                usedClusters.set(i);
+            }
+        }
+        freeClusterCount = size - usedClusters.cardinality();
+        allocCursor = geometry.headClusterCount;
+    }
+
+    private void commit() {
+        if (dirtySectors.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (commitIntervalMillis <= 0 || now - lastCommitTime >= commitIntervalMillis) {
+            flush();
+        } else if (mirror != null) {
+            // without further changes nothing would call commit again, so the mirror thread does it on time
+            mirror.scheduleCommit(lastCommitTime + commitIntervalMillis);
+        }
+    }
+
+    /**
+     * 定时提交，提交间隔已到期时写回脏扇区，否则重新登记
+     */
+    synchronized void commitIfDue() {
+        commit();
     }
     
     private synchronized void loadFAT() {
-        ByteBuffer buffer = ByteBuffer.allocate(Layout.SECTORS_PER_FAT * Layout.PER_SECTOR_SIZE);
-        for (int i = 0; i < Layout.SECTORS_PER_FAT; i++) {
-            byte[] data = disk.readSector(i + Layout.FAT_REGION_START);
-            buffer.put(data);
-        }
+        Geometry g = geometry;
+        ByteBuffer buffer = ByteBuffer.allocate(g.fatRegionSize * Layout.PER_SECTOR_SIZE);
+        disk.readSectors(g.fatRegionStart, g.fatRegionSize, buffer);
+        reconcile(buffer.array());
 
         buffer.rewind();
         ShortBuffer sb = buffer.asShortBuffer();
-        for (int i = 0; i < FAT_SIZE; i++) {
+        AtomicIntegerArray t = new AtomicIntegerArray(g.fatEntries);
+        for (int i = 0; i < g.fatEntries; i++) {
             short value = sb.get();
-            table[i] = value & 0xFFFF;
+            t.set(i, value & 0xFFFF);
+        }
+        table = t;
+        dirtySectors.clear();
+        buildFreeBitmap();
+    }
+
+    /**
+     * 比较两份FAT，逐扇区修复不一致：主FAT扇区合法时以主FAT为准更新第二份，
+     * 否则第二份合法时用它修复主FAT
+     *
+     * @param data 两份FAT的原始数据，修复后其中的主FAT为最终内容
+     */
+    private void reconcile(byte[] data) {
+        Geometry g = geometry;
+        int mirrorOffset = g.sectorsPerFat * Layout.PER_SECTOR_SIZE;
+        BitSet toPrimary = new BitSet(g.sectorsPerFat);
+        BitSet toMirror = new BitSet(g.sectorsPerFat);
+        for (int s = 0; s < g.sectorsPerFat; s++) {
+            int off = s * Layout.PER_SECTOR_SIZE;
+            if (sameSector(data, off, off + mirrorOffset)) {
+                continue;
+            }
+
+            if (!isValidSector(data, off, s) && isValidSector(data, off + mirrorOffset, s)) {
+                System.arraycopy(data, off + mirrorOffset, data, off, Layout.PER_SECTOR_SIZE);
+                toPrimary.set(s);
+            } else {
+                System.arraycopy(data, off, data, off + mirrorOffset, Layout.PER_SECTOR_SIZE);
+                toMirror.set(s);
+            }
+        }
+
+        writeRuns(data, 0, g.fatRegionStart, toPrimary);
+        writeRuns(data, mirrorOffset, g.mirrorStart, toMirror);
+        reconciledSectors = toPrimary.cardinality() + toMirror.cardinality();
+    }
+
+    private void writeRuns(byte[] data, int base, int startSector, BitSet sectors) {
+        int from = sectors.nextSetBit(0);
+        while (from >= 0) {
+            int to = sectors.nextClearBit(from);
+            ByteBuffer buffer = ByteBuffer.wrap(data, base + from * Layout.PER_SECTOR_SIZE, (to - from) * Layout.PER_SECTOR_SIZE);
+            disk.writeSectors(startSector + from, to - from, buffer);
+            from = sectors.nextSetBit(to);
+        }
+    }
+
+    private static boolean sameSector(byte[] data, int a, int b) {
+        for (int i = 0; i < Layout.PER_SECTOR_SIZE; i++) {
+            if (data[a + i] != data[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 扇区中每一项都必须是空闲、簇链结束/坏簇标记，或者指向其他数据簇
+     */
+    private boolean isValidSector(byte[] data, int off, int sector) {
+        for (int j = 0; j < ENTRIES_PER_SECTOR; j++) {
+            int v = ((data[off + 2 * j] & 0xFF) << 8) | (data[off + 2 * j + 1] & 0xFF);
+            int idx = sector * ENTRIES_PER_SECTOR + j;
+            boolean ok = v == FREE_CLUSTER || v >= 0xFFF7 || (isDataCluster(v) && v != idx);
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 挂载时两份FAT不一致而被修复的扇区数
+     */
+    public int getReconciledSectors() {
+        return reconciledSectors;
+    }
+
+    /**
+     * 把簇表中扇区区间[from, to)的内容按磁盘格式编码
+     */
+    synchronized ByteBuffer encodeSectors(int from, int to) {
+        ByteBuffer buffer = ByteBuffer.allocate((to - from) * Layout.PER_SECTOR_SIZE);
+        for (int i = from * ENTRIES_PER_SECTOR; i < to * ENTRIES_PER_SECTOR; i++) {
+            buffer.putShort((short) (table.get(i) & 0xFFFF));
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * @return 簇表的副本
+     */
+    synchronized int[] snapshot() {
+        int[] copy = new int[table.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = table.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * 释放一组簇，不检查它们是否在某条簇链中
+     */
+    synchronized void freeClusters(BitSet clusters) {
+        for (int c = clusters.nextSetBit(0); c >= 0; c = clusters.nextSetBit(c + 1)) {
+            setCluster(c, FREE_CLUSTER);
         }
+        commit();
+    }
+
+    /**
+     * 立即把待同步的扇区写入第二份FAT
+     */
+    public void syncMirror() {
+        mirror.sync();
     }
     
     public synchronized void reload() {
+        byte[] boot = new byte[Layout.PER_SECTOR_SIZE];
+        readMetadata(0, 1, boot);
+        Geometry g = Geometry.fromBootSector(boot, disk.sectorCount());
+        geometry = g != null ? g : Geometry.forVolume(disk.sectorCount(), Layout.SECTORS_PER_CLUSTER);
+
         loadFAT();
-        loadSubEntries(root);
+        root.fold();
+        loadNextCluster(root);
     }
     
+    /**
+     * 将脏扇区写回磁盘
+     */
     public synchronized void flush() {
-        ByteBuffer buffer = ByteBuffer.allocate(Layout.SECTORS_PER_FAT * Layout.PER_SECTOR_SIZE);
-        for (int i = 0; i < FAT_SIZE; i++) {
-            short value = (short) (table[i] & 0xFFFF);
-            buffer.putShort(value);
+        // all dirty sectors go into one journal transaction
+        MetadataJournal.Transaction tx = journal != null ? journal.begin() : null;
+        int from = dirtySectors.nextSetBit(0);
+        while (from >= 0) {
+            int to = dirtySectors.nextClearBit(from);
+            ByteBuffer buffer = encodeSectors(from, to);
+            if (tx != null) {
+                tx.write(from + geometry.fatRegionStart, to - from, buffer);
+            } else {
+                disk.writeSectors(from + geometry.fatRegionStart, to - from, buffer);
+            }
+            if (mirror != null) {
+                mirror.markDirty(from, to);
+            }
+            from = dirtySectors.nextSetBit(to);
         }
-        
-        buffer.rewind();
-        byte[] sectorData = new byte[Layout.PER_SECTOR_SIZE];
-        for (int i = 0; i < Layout.SECTORS_PER_FAT; i++) {
-            int sectorIdx = i + Layout.FAT_REGION_START;
-            buffer.get(sectorData);
-            disk.writeSector(sectorIdx, sectorData);
+        if (tx != null && !dirtySectors.isEmpty()) {
+            journal.commit(tx);
         }
+        dirtySectors.clear();
+        lastCommitTime = System.currentTimeMillis();
     }
 
     // 
     // Directory Tree Method.
     // 
     
+    private Lock directoryLock(DirectoryTreeNode dir) {
+        return directoryLocks.get(dir);
+    }
+
     @Override
     public void writeDirectoryTreeNode(DirectoryTreeNode node) {
-        byte[] entryData = node.getEntry().toBytes();
-        byte[] sectorData = disk.readSector(node.getSectorIdx());
-        System.arraycopy(entryData, 0, sectorData, node.getSectorOffset(), entryData.length);
-        
-        disk.writeSector(node.getSectorIdx(), sectorData);
+        // entries of one directory share sectors, serialize the read-modify-write
+        Lock lock = directoryLock(node.parent);
+        lock.lock();
+        try {
+            byte[] sectorData = new byte[Layout.PER_SECTOR_SIZE];
+            readMetadata(node.getSectorIdx(), 1, sectorData);
+            node.getEntry().encode(sectorData, node.getSectorOffset());
+            
+            writeMetadata(node.getSectorIdx(), 1, sectorData);
+        } finally {
+            lock.unlock();
+        }
     }
     
     @Override
@@ -166,10 +572,82 @@ public class FAT16 implements IFAT16 {
             return;
         }
         
-        int clusterIdx = node.getEntry().startingCluster;
-        node.reset();
-        writeCluster(clusterIdx, FREE_CLUSTER);
-        writeDirectoryTreeNode(node);
+        // a directory is removed under its own lock too, so no create can slip in after the emptiness check;
+        // bulkGet orders the two stripes consistently across threads
+        List<Lock> locks = Lists.newArrayList(directoryLocks.bulkGet(Arrays.asList(node, node.parent)));
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            boolean isDir = node.isDir();
+            if (isDir && !isEmpty(node)) {
+                throw new IllegalStateException("directory not empty.");
+            }
+
+            int clusterIdx = node.getStartingCluster();
+            node.reset();
+
+            // clear the entry before freeing its clusters, a crash in between only leaks them
+            writeDirectoryTreeNode(node);
+            if (isDir) {
+                revokeChain(clusterIdx);
+            }
+            markFreeFrom(clusterIdx);
+            writeCluster(clusterIdx, FREE_CLUSTER);
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+    }
+
+    /**
+     * 清除目录项而不释放任何簇，用于起始簇已不属于它的目录项
+     */
+    void dropTreeNode(DirectoryTreeNode node) {
+        Lock lock = directoryLock(node.parent);
+        lock.lock();
+        try {
+            node.reset();
+            writeDirectoryTreeNode(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 目录的簇即将被释放，撤销日志中这些簇的扇区镜像，之后它们可能被文件数据直接覆盖
+     */
+    private void revokeChain(int clusterIdx) {
+        if (journal == null) {
+            return;
+        }
+
+        MetadataJournal.Transaction tx = journal.begin();
+        int idx = clusterIdx;
+        while (isDataCluster(idx)) {
+            tx.revoke(geometry.clusterStartSector(idx), geometry.sectorsPerCluster);
+            idx = readCluster(idx);
+        }
+        journal.commit(tx);
+    }
+
+    /**
+     * 撤销日志中一组簇的扇区镜像，这些簇即将不再属于任何目录
+     */
+    void revokeClusters(BitSet clusters) {
+        if (journal == null || clusters.isEmpty()) {
+            return;
+        }
+
+        MetadataJournal.Transaction tx = journal.begin();
+        int from = clusters.nextSetBit(0);
+        while (from >= 0) {
+            int to = clusters.nextClearBit(from);
+            tx.revoke(geometry.clusterStartSector(from), (to - from) * geometry.sectorsPerCluster);
+            from = clusters.nextSetBit(to);
+        }
+        journal.commit(tx);
     }
     
     @Override
@@ -178,15 +656,17 @@ public class FAT16 implements IFAT16 {
             parent = root;
         }
         
-        if(!parent.isDir()) {
+        if (isFile(parent)) {
             throw new IllegalArgumentException(name + ": not directory");
         }
         
-        if (parent.isFold()) {
-            loadSubEntries(parent);
+        Lock lock = directoryLock(parent);
+        lock.lock();
+        try {
+            return lookup(parent, name);
+        } finally {
+            lock.unlock();
         }
-        
-        return parent.find(name);
     }
     
     public boolean isEmpty(DirectoryTreeNode parent) {
@@ -198,11 +678,17 @@ public class FAT16 implements IFAT16 {
             throw new IllegalArgumentException(parent.getName() + ": not directory");
         }
 
-        if (parent.isFold()) {
-            loadSubEntries(parent);
+        Lock lock = directoryLock(parent);
+        lock.lock();
+        try {
+            DirectoryTreeNode first = parent.isFold() ? null : parent.firstTreeNode();
+            while (first == null && loadNextCluster(parent)) {
+                first = parent.firstTreeNode();
+            }
+            return first == null;
+        } finally {
+            lock.unlock();
         }
-
-        return parent.firstTreeNode() == null;
     }
     
     @Override
@@ -211,54 +697,227 @@ public class FAT16 implements IFAT16 {
             parent = root;
         }
         
-        if (parent.isFold()) {
-            loadSubEntries(parent);
+        Lock lock = directoryLock(parent);
+        lock.lock();
+        try {
+            checkLive(parent, name);
+            // a miss leaves the whole directory loaded
+            if (lookup(parent, name) != null) {
+                throw new IllegalStateException("file exist.");
+            }
+            return create(parent, name, isDir);
+        } finally {
+            lock.unlock();
         }
-        
-        DirectoryTreeNode node = parent.find(name);
-        if (node != null) {
-            throw new IllegalStateException("file exist.");
+    }
+
+    /**
+     * 查找子目录项，不存在时创建，查找和创建在同一次目录锁内完成
+     *
+     * @param parent 父目录
+     * @param name   文件名
+     * @param isDir  不存在时是否创建为目录
+     * @return 已存在或新建的目录项节点
+     */
+    public DirectoryTreeNode findOrCreateTreeNode(DirectoryTreeNode parent, String name, boolean isDir) {
+        if (parent == null) {
+            parent = root;
         }
-        
-        node = parent.create(name, isDir);
+
+        if (isFile(parent)) {
+            throw new IllegalArgumentException(name + ": not directory");
+        }
+
+        Lock lock = directoryLock(parent);
+        lock.lock();
+        try {
+            checkLive(parent, name);
+            DirectoryTreeNode node = lookup(parent, name);
+            return node != null ? node : create(parent, name, isDir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 仍然存在的普通文件，已被删除的目录节点不算，它由持锁后的检查处理
+     */
+    private static boolean isFile(DirectoryTreeNode node) {
+        return node.valid() && !node.isDir();
+    }
+
+    /**
+     * 持有目录锁时确认目录仍然存在，它可能在等锁期间被删除
+     */
+    private static void checkLive(DirectoryTreeNode parent, String name) {
+        if (!parent.isDir() || (!parent.isRoot() && !parent.valid())) {
+            throw new IllegalStateException(name + ": parent directory removed");
+        }
+    }
+
+    private DirectoryTreeNode create(DirectoryTreeNode parent, String name, boolean isDir) {
+        DirectoryTreeNode node = parent.create(name, isDir);
+        if (node == null) {
+            growDirectory(parent);
+            node = parent.create(name, isDir);
+        }
+        // a reused node may still carry entries loaded by a lookup that raced with its removal
+        node.fold();
         
         // update
         DirectoryEntry entry = node.getEntry();
-        entry.startingCluster = (short) (nextFreeCluster(-1) & 0xFFFF);
+        int clusterIdx = nextFreeCluster(-1);
+        if (clusterIdx < 0) {
+            // give the slot back, nothing has been written yet
+            node.reset();
+            throw new IllegalStateException("low disk space");
+        }
+        if (isDir) {
+            zeroCluster(clusterIdx);
+        }
+        entry.startingCluster = (short) (clusterIdx & 0xFFFF);
         writeDirectoryTreeNode(node);
         
         return node;
     }
     
-    public void loadEntries(DirectoryTreeNode parent) {
-        if (parent.isDir() && parent.isFold()) {
-            loadSubEntries(parent);
+    /**
+     * 加载目录的全部目录项
+     *
+     * @return 子目录项节点的快照
+     */
+    public DirectoryTreeNode[] loadEntries(DirectoryTreeNode parent) {
+        if (!parent.isDir()) {
+            return new DirectoryTreeNode[0];
+        }
+
+        Lock lock = directoryLock(parent);
+        lock.lock();
+        try {
+            while (loadNextCluster(parent));
+            return parent.getChildren();
+        } finally {
+            lock.unlock();
         }
     }
-    
-    private void loadSubEntries(DirectoryTreeNode parent) {
-        int sectorIdx, limit;
+
+    /**
+     * 读取目录指定簇中的目录项，不跟随FAT中的簇链，也不挂到目录节点上
+     */
+    DirectoryTreeNode[] readDirectoryClusters(DirectoryTreeNode parent, int[] clusters) {
+        Geometry g = geometry;
+        List<DirectoryTreeNode> nodes = new ArrayList<DirectoryTreeNode>();
+        for (int c : clusters) {
+            nodes.addAll(loadEntries(parent, g.clusterStartSector(c), g.sectorsPerCluster));
+        }
+        return nodes.toArray(new DirectoryTreeNode[0]);
+    }
+
+    /**
+     * 在已加载的目录项中查找，找不到时继续加载目录的下一个簇，直到找到或簇链结束
+     */
+    private DirectoryTreeNode lookup(DirectoryTreeNode parent, String name) {
+        DirectoryTreeNode node = parent.isFold() ? null : parent.find(name);
+        while (node == null && loadNextCluster(parent)) {
+            node = parent.find(name);
+        }
+        return node;
+    }
+
+    /**
+     * 加载目录的下一个簇，根目录区域一次全部加载
+     *
+     * @return 是否加载了新的目录项，簇链已全部加载时返回false
+     */
+    private boolean loadNextCluster(DirectoryTreeNode parent) {
+        if (parent.isComplete()) {
+            return false;
+        }
+
+        Geometry g = geometry;
         if (parent == root) {
-            sectorIdx = Layout.ROOT_DIRECTORY_REGION_START;
-            limit = Layout.ROOT_DIRECTORY_REGION_SIZE;
-        } else {
-            sectorIdx = Layout.getClusterDataStartSector(parent.getEntry().startingCluster);
-            limit = Layout.SECTORS_PER_CLUSTER;
+            parent.addChildren(loadEntries(parent, g.rootDirectoryStart, g.rootDirectorySectors));
+            parent.markComplete();
+            parent.unfold();
+            return true;
         }
 
-        List<DirectoryTreeNode> childre = loadEntries(parent, sectorIdx, limit);
-        parent.setChildren(childre.toArray(new DirectoryTreeNode[childre.size()]));
+        int loaded = parent.getLoadedCluster();
+        int next = loaded < 0 ? parent.getStartingCluster() : readCluster(loaded);
+        if (!isDataCluster(next)) {
+            parent.markComplete();
+            parent.unfold();
+            return false;
+        }
+
+        parent.addChildren(loadEntries(parent, g.clusterStartSector(next), g.sectorsPerCluster));
+        parent.setLoadedCluster(next);
         parent.unfold();
+        return true;
+    }
+
+    /**
+     * 目录已满时为其追加一个清零的簇，根目录区域大小固定，不能扩展
+     */
+    private void growDirectory(DirectoryTreeNode parent) {
+        if (parent == root) {
+            throw new IllegalStateException("directory full");
+        }
+
+        // zero the cluster before linking it, so the chain never reaches stale data
+        int clusterIdx = nextFreeCluster(-1);
+        if (clusterIdx < 0) {
+            throw new IllegalStateException("low disk space");
+        }
+        byte[] data = zeroCluster(clusterIdx);
+        writeCluster(parent.getLoadedCluster(), clusterIdx);
+
+        parent.addChildren(parseEntries(parent, geometry.clusterStartSector(clusterIdx), geometry.sectorsPerCluster, data));
+        parent.setLoadedCluster(clusterIdx);
+    }
+
+    private byte[] zeroCluster(int clusterIdx) {
+        byte[] data = new byte[geometry.clusterSize];
+        writeMetadata(geometry.clusterStartSector(clusterIdx), geometry.sectorsPerCluster, data);
+        return data;
+    }
+
+    /**
+     * 读取目录扇区，启用日志时尚未写回原位置的扇区从日志镜像中读取
+     */
+    private void readMetadata(int sectorIdx, int count, byte[] data) {
+        if (journal != null) {
+            journal.readSectors(sectorIdx, count, ByteBuffer.wrap(data));
+        } else {
+            disk.readMetadataSectors(sectorIdx, count, ByteBuffer.wrap(data));
+        }
+    }
+
+    /**
+     * 写入目录扇区，启用日志时作为一个事务提交到日志
+     */
+    private void writeMetadata(int sectorIdx, int count, byte[] data) {
+        if (journal != null) {
+            MetadataJournal.Transaction tx = journal.begin();
+            tx.write(sectorIdx, count, ByteBuffer.wrap(data));
+            journal.commit(tx);
+        } else {
+            disk.writeMetadataSectors(sectorIdx, count, ByteBuffer.wrap(data));
+        }
     }
     
     private List<DirectoryTreeNode> loadEntries(DirectoryTreeNode parent, int sectorIdx, int limitSectorCount) {
-        List<DirectoryTreeNode> nodes = new ArrayList<DirectoryTreeNode>(limitSectorCount);
-        byte[] buffer = new byte[Layout.PER_DIRECTOR_ENTRY_SIZE];
+        byte[] data = new byte[limitSectorCount * Layout.PER_SECTOR_SIZE];
+        readMetadata(sectorIdx, limitSectorCount, data);
+        return parseEntries(parent, sectorIdx, limitSectorCount, data);
+    }
+
+    private List<DirectoryTreeNode> parseEntries(DirectoryTreeNode parent, int sectorIdx, int limitSectorCount, byte[] data) {
+        List<DirectoryTreeNode> nodes = new ArrayList<DirectoryTreeNode>(limitSectorCount * Layout.PER_SECTOR_SIZE / Layout.PER_DIRECTOR_ENTRY_SIZE);
         for (int i = 0; i < limitSectorCount; i++) {
-            byte[] sectorData = disk.readSector(sectorIdx + i);
-            for (int j = 0; j < sectorData.length; j += Layout.PER_DIRECTOR_ENTRY_SIZE) {
-                System.arraycopy(sectorData, j, buffer, 0, Layout.PER_DIRECTOR_ENTRY_SIZE);
-                DirectoryEntry entry = DirectoryEntry.from(buffer);
+            int base = i * Layout.PER_SECTOR_SIZE;
+            for (int j = 0; j < Layout.PER_SECTOR_SIZE; j += Layout.PER_DIRECTOR_ENTRY_SIZE) {
+                DirectoryEntry entry = DirectoryEntry.decode(data, base + j);
                 
                 DirectoryTreeNode node = new DirectoryTreeNode(parent, entry);
                 node.setSectorIdx(sectorIdx + i);
@@ -274,21 +933,40 @@ public class FAT16 implements IFAT16 {
     //
     @Override
     public void format() {
-        // fill disk with zero
-        byte[] zeros = new byte[Layout.PER_SECTOR_SIZE];
-        int count = Layout.DATA_REGION_START;
-        for (int i = 0; i < count; i++) {
-            disk.writeSector(i, zeros);
+        format(Geometry.forVolume(disk.sectorCount(), Layout.SECTORS_PER_CLUSTER));
+    }
+
+    @Override
+    public void format(Geometry geometry) {
+        if (geometry.totalSectors > disk.sectorCount()) {
+            throw new IllegalArgumentException("volume larger than disk: " + geometry);
         }
 
-        // write boot sector
-        disk.writeSector(0, new Layout.BootSector().toBytes());
+        mirror.discard();
+        if (journal != null) {
+            journal.reset();
+        }
+
+        // boot sector followed by zeroed FATs and root directory, in one write; the data region is left alone
+        int count = geometry.dataRegionStart;
+        ByteBuffer buffer = ByteBuffer.allocate(count * Layout.PER_SECTOR_SIZE);
+        buffer.put(new Layout.BootSector(geometry).toBytes());
+        buffer.clear();
+        disk.writeSectors(0, count, buffer);
 
         reload();
     }
     
     @Override
-    public synchronized void close() {
+    public void close() {
         flush();
+        mirror.close();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("journal close failed", e);
+            }
+        }
     }
 }
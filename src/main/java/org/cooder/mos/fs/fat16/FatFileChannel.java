@@ -0,0 +1,213 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.cooder.mos.device.IDisk;
+
+/**
+ * 文件的随机读写通道，按文件内偏移读写，不维护当前位置。
+ * <p>
+ * 读取复用一个可定位的{@link FatFileInputStream}，写入时在目标偏移处新建{@link FatFileOutputStream}覆盖写，
+ * 两者都通过簇链索引直接定位到偏移所在的簇。
+ */
+public class FatFileChannel implements Closeable {
+    private final IDisk disk;
+    private final IFAT16 fat;
+    private final DirectoryTreeNode node;
+
+    private FatFileInputStream reader;
+    private ClusterChain readerChain;
+    private int readerLimit;
+    private final int clusterSize;
+    private final byte[] transfer;
+
+    public FatFileChannel(IDisk disk, IFAT16 fat, DirectoryTreeNode node) {
+        this.disk = disk;
+        this.fat = fat;
+        this.node = node;
+        this.clusterSize = fat.geometry().clusterSize;
+        this.transfer = new byte[clusterSize];
+    }
+
+    public long size() {
+        return node.getFileSize();
+    }
+
+    /**
+     * 从文件内的指定偏移读取数据到dst
+     *
+     * @return 实际读取的字节数，偏移不小于文件大小时返回-1
+     */
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position: " + position);
+        }
+
+        int size = node.getFileSize();
+        if (position >= size) {
+            return -1;
+        }
+
+        FatFileInputStream in = reader(size);
+        in.seek((int) position);
+
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n;
+            if (dst.hasArray()) {
+                n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (n > 0) {
+                    dst.position(dst.position() + n);
+                }
+            } else {
+                n = in.read(transfer, 0, Math.min(transfer.length, dst.remaining()));
+                if (n > 0) {
+                    dst.put(transfer, 0, n);
+                }
+            }
+
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * 将src中的剩余数据写到文件内的指定偏移，偏移超过文件大小时中间以0填充
+     *
+     * @return 写入的字节数
+     */
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position: " + position);
+        }
+
+        int len = src.remaining();
+        if (position + len > Integer.MAX_VALUE) {
+            throw new IOException("file too large");
+        }
+
+        closeReader();
+
+        int size = node.getFileSize();
+        if (position > size) {
+            fillZeros(size, position);
+        }
+
+        FatFileOutputStream out = openWriter(position);
+        try {
+            while (src.hasRemaining()) {
+                if (src.hasArray()) {
+                    int n = src.remaining();
+                    out.write(src.array(), src.arrayOffset() + src.position(), n);
+                    src.position(src.position() + n);
+                } else {
+                    int n = Math.min(transfer.length, src.remaining());
+                    src.get(transfer, 0, n);
+                    out.write(transfer, 0, n);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return len;
+    }
+
+    /**
+     * 将文件截断到指定大小，释放不再需要的簇，size不小于文件大小时不做任何修改
+     */
+    public synchronized void truncate(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        if (size >= node.getFileSize()) {
+            return;
+        }
+
+        closeReader();
+
+        ClusterChain chain = fat.clusterChain(node);
+        int keep = Math.max(1, (int) ((size + clusterSize - 1) / clusterSize));
+        int lastClusterIdx = chain.get(keep - 1);
+        fat.markFreeFrom(lastClusterIdx);
+        fat.writeCluster(lastClusterIdx, fat.getEndOfChain());
+        if (!chain.truncateAfter(lastClusterIdx)) {
+            node.invalidateClusterChain();
+        }
+
+        node.setFileSize((int) size);
+        node.setWriteTime(System.currentTimeMillis());
+        fat.writeDirectoryTreeNode(node);
+    }
+
+    @Override
+    public synchronized void close() {
+        closeReader();
+    }
+
+    private FatFileInputStream reader(int size) {
+        ClusterChain chain = fat.clusterChain(node);
+        if (reader == null || readerChain != chain || readerLimit != size) {
+            closeReader();
+            reader = new FatFileInputStream(disk, fat, chain, size);
+            readerChain = chain;
+            readerLimit = size;
+        }
+        return reader;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readerChain = null;
+        }
+    }
+
+    /**
+     * 在文件内的指定偏移打开输出流，偏移恰好位于簇链末尾时追加一个簇
+     */
+    private FatFileOutputStream openWriter(long position) {
+        ClusterChain chain = fat.clusterChain(node);
+        int index = chain.indexOf(position);
+
+        int clusterIdx;
+        if (index < chain.length()) {
+            clusterIdx = chain.get(index);
+        } else {
+            clusterIdx = fat.nextFreeCluster(chain.last());
+            if (clusterIdx < 0) {
+                throw new IllegalStateException("low disk space");
+            }
+            chain.append(clusterIdx);
+        }
+
+        int offset = (int) (position % clusterSize);
+        int sectorIdx = fat.geometry().clusterStartSector(clusterIdx) + offset / Layout.PER_SECTOR_SIZE;
+        return new FatFileOutputStream(disk, fat, clusterIdx, sectorIdx, offset % Layout.PER_SECTOR_SIZE, node, position);
+    }
+
+    private void fillZeros(long from, long to) throws IOException {
+        FatFileOutputStream out = openWriter(from);
+        try {
+            byte[] zeros = new byte[(int) Math.min(clusterSize, to - from)];
+            for (long p = from; p < to; p += zeros.length) {
+                out.write(zeros, 0, (int) Math.min(zeros.length, to - p));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -10,27 +10,74 @@ package org.cooder.mos.fs.fat16;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cooder.mos.device.IDisk;
 
 public class FatFileInputStream extends InputStream {
-    private final byte[] buffer = new byte[Layout.PER_SECTOR_SIZE];
+    private static final ExecutorService READ_AHEAD_EXECUTOR = Executors.newFixedThreadPool(4, new ReadAheadThreadFactory());
+
+    /**
+     * 预读窗口上限（簇），0表示关闭预读
+     */
+    private static volatile int maxReadAheadClusters = 4;
+
+    private final Geometry geometry;
+    private byte[] buffer;
     private int pos = 0;
+    private int valid = 0;
+    private int loadedFrom = 0;
     private int limit = -1;
     private int count = 0;
     private int currentClusterIdx;
-    private int currentSectorIdx;
     private IDisk disk;
     private IFAT16 fat;
+    private ClusterChain chain;
+
+    // 已读入或已提交预读的最后一个簇，以及截至该簇末尾的字节数（与count同一基准）
+    private int tailClusterIdx;
+    private long tailEnd;
+    private int window = 0;
+    private final ArrayDeque<ReadAhead> readAheads = new ArrayDeque<ReadAhead>();
+    private final ArrayDeque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
 
     public FatFileInputStream(IDisk disk, IFAT16 fat, int startClusterIdx, int sectorIdx, int limit) {
         this.disk = disk;
         this.currentClusterIdx = startClusterIdx;
-        this.currentSectorIdx = sectorIdx;
         this.limit = limit;
         this.fat = fat;
-        
-        disk.readSector(currentSectorIdx, buffer);
+        this.geometry = fat.geometry();
+        this.buffer = new byte[geometry.clusterSize];
+
+        int offset = (sectorIdx - firstSectorIdx(startClusterIdx)) * Layout.PER_SECTOR_SIZE;
+        loadCluster(offset);
+        this.tailClusterIdx = startClusterIdx;
+        this.tailEnd = buffer.length - offset;
+    }
+
+    /**
+     * 从文件起始位置读取，可通过簇链索引直接定位到任意偏移
+     *
+     * @param chain 文件的簇链索引
+     * @param limit 文件大小
+     */
+    public FatFileInputStream(IDisk disk, IFAT16 fat, ClusterChain chain, int limit) {
+        this(disk, fat, chain.get(0), fat.geometry().clusterStartSector(chain.get(0)), limit);
+        this.chain = chain;
+    }
+
+    /**
+     * 设置顺序读取时的最大预读簇数，0表示关闭预读
+     */
+    public static void setMaxReadAheadClusters(int clusters) {
+        maxReadAheadClusters = Math.max(0, clusters);
     }
 
     @Override
@@ -39,55 +86,228 @@ public class FatFileInputStream extends InputStream {
             return -1;
         }
 
-        if (pos >= buffer.length) {
-            if (!readNextSector()) {
+        if (pos >= valid) {
+            if (!readNextCluster()) {
                 return -1;
             }
         }
 
         count++;
-        return buffer[pos++];
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+
+        int n = 0;
+        while (n < len && count < limit) {
+            if (pos >= valid && !readNextCluster()) {
+                break;
+            }
+
+            int c = Math.min(Math.min(len - n, valid - pos), limit - count);
+            System.arraycopy(buffer, pos, b, off + n, c);
+            pos += c;
+            count += c;
+            n += c;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (chain == null) {
+            return super.skip(n);
+        }
+
+        long target = Math.min(limit, count + Math.max(0, n));
+        int skipped = (int) target - count;
+        seek((int) target);
+        return skipped;
+    }
+
+    /**
+     * 定位到文件内的指定偏移，需要簇链索引
+     *
+     * @param position 文件内偏移
+     */
+    public void seek(int position) {
+        if (chain == null) {
+            throw new IllegalStateException("no cluster chain");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position: " + position);
+        }
+
+        // still inside the loaded part of the current cluster
+        int clusterStart = count - pos;
+        if (position >= clusterStart + loadedFrom && position < clusterStart + valid) {
+            pos = position - clusterStart;
+            count = position;
+            return;
+        }
+
+        for (ReadAhead ra : readAheads) {
+            ra.future.cancel(false);
+        }
+        readAheads.clear();
+        window = 0;
+
+        count = position;
+        int index = chain.indexOf(position);
+        int offset = position % geometry.clusterSize;
+        if (position >= limit || index >= chain.length()) {
+            // nothing left to read
+            pos = valid = 0;
+            return;
+        }
+
+        currentClusterIdx = chain.get(index);
+        loadCluster(offset);
+        tailClusterIdx = currentClusterIdx;
+        tailEnd = (long) position - offset + geometry.clusterSize;
+    }
+
+    @Override
+    public int available() {
+        return Math.max(0, limit - count);
     }
 
     public void close() {
-        // no-op
+        for (ReadAhead ra : readAheads) {
+            ra.future.cancel(false);
+        }
+        readAheads.clear();
+        spareBuffers.clear();
     }
 
     public int getCount() {
         return count;
     }
 
-    private boolean readNextSector() {
-        int next = nextSector();
-        if (next < 0) {
-            return false;
+    private boolean readNextCluster() {
+        ReadAhead ra = readAheads.poll();
+        if (ra != null) {
+            currentClusterIdx = ra.clusterIdx;
+            spareBuffers.push(buffer);
+            buffer = ra.await();
+            valid = ra.sectors * Layout.PER_SECTOR_SIZE;
+            loadedFrom = 0;
+            pos = 0;
+        } else {
+            int next = fat.readCluster(currentClusterIdx);
+            if (!fat.isDataCluster(next)) {
+                return false;
+            }
+
+            currentClusterIdx = next;
+            loadCluster(0);
+            tailClusterIdx = next;
+            tailEnd += geometry.clusterSize;
         }
-        
-        currentSectorIdx = next;
-        disk.readSector(currentSectorIdx, buffer);
-        pos = 0;
+
+        // 整簇读完才会走到这里，说明是顺序读取，逐步扩大预读窗口
+        window = window == 0 ? 1 : Math.min(window * 2, maxReadAheadClusters);
+        scheduleReadAhead();
         return true;
     }
 
-    private int nextSector() {
-        int next = -1;
-        if (currentSectorIdx == lastSectorIdx(currentClusterIdx)) {
-            if (currentClusterIdx == fat.getEndOfChain()) {
-                return -1;
+    /**
+     * 在后台读入当前簇之后的若干簇，直到填满预读窗口或到达文件末尾
+     */
+    private void scheduleReadAhead() {
+        while (readAheads.size() < Math.min(window, maxReadAheadClusters) && tailEnd < limit) {
+            int next = fat.readCluster(tailClusterIdx);
+            if (!fat.isDataCluster(next)) {
+                return;
             }
-            currentClusterIdx = fat.readCluster(currentClusterIdx);
-            next = firstSectorIdx(currentClusterIdx);
-        } else {
-            next = currentSectorIdx + 1;
+
+            int sectors = sectorsFor(limit - tailEnd);
+            byte[] dst = spareBuffers.isEmpty() ? new byte[geometry.clusterSize] : spareBuffers.pop();
+            readAheads.add(new ReadAhead(next, sectors, dst));
+            tailClusterIdx = next;
+            tailEnd += geometry.clusterSize;
+        }
+    }
+
+    /**
+     * 一次读入当前簇中从offset起剩余文件数据所覆盖的扇区
+     */
+    private void loadCluster(int offset) {
+        int sectors = sectorsFor((long) offset + (limit - count));
+        int firstSector = offset / Layout.PER_SECTOR_SIZE;
+        if (sectors > firstSector) {
+            ByteBuffer buf = ByteBuffer.wrap(buffer, firstSector * Layout.PER_SECTOR_SIZE,
+                    (sectors - firstSector) * Layout.PER_SECTOR_SIZE);
+            disk.readSectors(firstSectorIdx(currentClusterIdx) + firstSector, sectors - firstSector, buf);
         }
-        return next;
+        valid = sectors * Layout.PER_SECTOR_SIZE;
+        loadedFrom = firstSector * Layout.PER_SECTOR_SIZE;
+        pos = offset;
+    }
+
+    /**
+     * @param bytes 从簇起始位置算起的剩余文件字节数
+     * @return 需要读入的扇区数
+     */
+    private int sectorsFor(long bytes) {
+        long n = Math.min(geometry.clusterSize, Math.max(0, bytes));
+        return (int) ((n + Layout.PER_SECTOR_SIZE - 1) / Layout.PER_SECTOR_SIZE);
     }
 
-    private static int firstSectorIdx(int clusterIdx) {
-        return Layout.getClusterDataStartSector(clusterIdx);
+    private int firstSectorIdx(int clusterIdx) {
+        return geometry.clusterStartSector(clusterIdx);
     }
 
-    private static int lastSectorIdx(int clusterIdx) {
-        return Layout.getClusterDataLastSector(clusterIdx);
+    private class ReadAhead {
+        final int clusterIdx;
+        final int sectors;
+        final byte[] data;
+        final Future<?> future;
+
+        ReadAhead(int clusterIdx, int sectors, byte[] data) {
+            this.clusterIdx = clusterIdx;
+            this.sectors = sectors;
+            this.data = data;
+            this.future = READ_AHEAD_EXECUTOR.submit(this::load);
+        }
+
+        private void load() {
+            disk.readSectors(firstSectorIdx(clusterIdx), sectors, ByteBuffer.wrap(data, 0, sectors * Layout.PER_SECTOR_SIZE));
+        }
+
+        /**
+         * 等待预读完成，预读失败时在当前线程重新读取
+         */
+        byte[] await() {
+            try {
+                future.get();
+                return data;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // fall through
+            }
+
+            byte[] buf = new byte[geometry.clusterSize];
+            disk.readSectors(firstSectorIdx(clusterIdx), sectors, ByteBuffer.wrap(buf, 0, sectors * Layout.PER_SECTOR_SIZE));
+            return buf;
+        }
+    }
+
+    private static class ReadAheadThreadFactory implements ThreadFactory {
+        private final AtomicInteger seq = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "mos-readahead-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
     }
 }
@@ -10,62 +10,167 @@ package org.cooder.mos.fs.fat16;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.cooder.mos.device.IDisk;
 
 public class FatFileOutputStream extends OutputStream {
-    private final byte[] zeroBuffer = new byte[Layout.PER_SECTOR_SIZE];
-    private final byte[] buffer = new byte[Layout.PER_SECTOR_SIZE];
+    /**
+     * 写满缓冲区时目录项的持久化间隔（毫秒），不大于0表示只在flush/close时持久化
+     */
+    private static volatile long entryUpdateIntervalMillis = 0;
+
+    private final Geometry geometry;
+    private final byte[] buffer;
     private int pos = 0;
+    private int flushedPos = 0;
     private int count = 0;
-    private int markCount = 0;
+    private long position;
     private int currentClusterIdx;
-    private int currentSectorIdx;
     private final IDisk disk;
     private final IFAT16 fat;
     private final DirectoryTreeNode node;
+    private long lastEntryUpdateTime;
 
+    /**
+     * 从文件末尾开始写入
+     */
     public FatFileOutputStream(IDisk disk, IFAT16 fat, int startClusterIdx, int startSectorIdx, int pos, DirectoryTreeNode node) {
+        this(disk, fat, startClusterIdx, startSectorIdx, pos, node, node.getFileSize());
+    }
+
+    /**
+     * 从文件内的指定偏移开始写入，覆盖已有数据，超出文件末尾时扩展文件
+     *
+     * @param position 起始位置对应的文件内偏移
+     */
+    public FatFileOutputStream(IDisk disk, IFAT16 fat, int startClusterIdx, int startSectorIdx, int pos, DirectoryTreeNode node, long position) {
         this.disk = disk;
         this.currentClusterIdx = startClusterIdx;
-        this.currentSectorIdx = startSectorIdx;
         this.fat = fat;
-        this.pos = pos;
+        this.geometry = fat.geometry();
+        this.buffer = new byte[geometry.clusterSize];
         this.node = node;
+        this.position = position;
+        this.lastEntryUpdateTime = System.currentTimeMillis();
         
-        disk.readSector(currentSectorIdx, buffer);
+        int sectorOffset = (startSectorIdx - firstSectorIdx(startClusterIdx)) * Layout.PER_SECTOR_SIZE;
+        this.pos = sectorOffset + pos;
+        this.flushedPos = this.pos;
+        if (pos > 0) {
+            disk.readSectors(startSectorIdx, 1, ByteBuffer.wrap(buffer, sectorOffset, Layout.PER_SECTOR_SIZE));
+        }
     }
 
     @Override
     public void write(int b) throws IOException {
         if (pos >= buffer.length) {
-            flush();
+            flushBuffer();
             resetBuffer();
         }
 
         buffer[pos++] = (byte) (b & 0xFF);
         count++;
-        markCount++;
+        position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0) {
+            if (pos >= buffer.length) {
+                flushBuffer();
+                resetBuffer();
+            }
+
+            int c = Math.min(len, buffer.length - pos);
+            System.arraycopy(b, off, buffer, pos, c);
+            pos += c;
+            off += c;
+            len -= c;
+            count += c;
+            position += c;
+        }
     }
     
+    /**
+     * 设置写满缓冲区时目录项的持久化间隔
+     *
+     * @param millis 间隔（毫秒），不大于0表示只在flush/close时持久化
+     */
+    public static void setEntryUpdateInterval(long millis) {
+        entryUpdateIntervalMillis = millis;
+    }
+
     @Override
     public void flush() {
-        // flush data
-        disk.writeSector(currentSectorIdx, buffer);
+        flushData();
+        updateEntry();
+    }
+
+    /**
+     * 写出缓冲区中未落盘的扇区，目录项只在内存中更新
+     */
+    private void flushData() {
+        // flush data, whole sectors from the first unflushed one
+        int fromSector = flushedPos / Layout.PER_SECTOR_SIZE;
+        int toSector = (pos + Layout.PER_SECTOR_SIZE - 1) / Layout.PER_SECTOR_SIZE;
+        int tail = pos % Layout.PER_SECTOR_SIZE;
+        if (tail > 0 && position < node.getFileSize()) {
+            // overwriting inside the file, keep the existing bytes after pos in the last sector
+            byte[] sector = disk.readSector(firstSectorIdx(currentClusterIdx) + toSector - 1);
+            System.arraycopy(sector, tail, buffer, pos, Layout.PER_SECTOR_SIZE - tail);
+        }
+        if (toSector > fromSector) {
+            ByteBuffer buf = ByteBuffer.wrap(buffer, fromSector * Layout.PER_SECTOR_SIZE,
+                    (toSector - fromSector) * Layout.PER_SECTOR_SIZE);
+            disk.writeSectors(firstSectorIdx(currentClusterIdx) + fromSector, toSector - fromSector, buf);
+        }
+        flushedPos = pos;
         
-        // update file entry
-        int fileSize = markCount + node.getFileSize();
-        node.setFileSize(fileSize);
+        if (position > node.getFileSize()) {
+            node.setFileSize((int) position);
+        }
         node.setWriteTime(System.currentTimeMillis());
-        
+    }
+
+    private void updateEntry() {
         fat.writeDirectoryTreeNode(node);
-        
-        markCount = 0;
+        lastEntryUpdateTime = System.currentTimeMillis();
     }
     
+    private void flushBuffer() {
+        flushData();
+
+        long interval = entryUpdateIntervalMillis;
+        if (interval > 0 && System.currentTimeMillis() - lastEntryUpdateTime >= interval) {
+            updateEntry();
+        }
+    }
+
     @Override
     public void close() {
         flush();
+        if (position < node.getFileSize()) {
+            // stopped inside the file, the rest of the chain holds data
+            return;
+        }
+
+        // release preallocated clusters that were not used
+        int next = fat.readCluster(currentClusterIdx);
+        if (fat.isDataCluster(next)) {
+            fat.markFreeFrom(currentClusterIdx);
+            fat.writeCluster(currentClusterIdx, fat.getEndOfChain());
+
+            ClusterChain chain = node.getClusterChain();
+            if (chain != null && !chain.truncateAfter(currentClusterIdx)) {
+                node.invalidateClusterChain();
+            }
+        }
     }
     
     public int getCount() {
@@ -73,36 +178,37 @@ public class FatFileOutputStream extends OutputStream {
     }
 
     private void resetBuffer() {
-        int next = nextSector();
-        if (next < 0) {
-            throw new IllegalStateException("low disk space");
+        int nextCluster = fat.readCluster(currentClusterIdx);
+        if (!fat.isDataCluster(nextCluster)) {
+            nextCluster = fat.nextFreeCluster(currentClusterIdx);
+            if (nextCluster < 0) {
+                throw new IllegalStateException("low disk space");
+            }
+            appendToChain(nextCluster);
         }
-        currentSectorIdx = next;
-        System.arraycopy(zeroBuffer, 0, buffer, 0, buffer.length);
+        currentClusterIdx = nextCluster;
+        Arrays.fill(buffer, (byte) 0);
         pos = 0;
+        flushedPos = 0;
     }
 
-    private int nextSector() {
-        int next = -1;
-        if (currentSectorIdx == lastSectorIdx(currentClusterIdx)) {
-            int nextCluster = fat.nextFreeCluster(currentClusterIdx);
-            if (nextCluster < 0) {
-                return -1;
-            }
-            
-            currentClusterIdx = nextCluster;
-            next = firstSectorIdx(currentClusterIdx);
-        } else {
-            next = currentSectorIdx + 1;
+    /**
+     * 新分配的簇追加到缓存的簇链索引，索引与当前位置不一致时使其失效
+     */
+    private void appendToChain(int clusterIdx) {
+        ClusterChain chain = node.getClusterChain();
+        if (chain == null) {
+            return;
         }
-        return next;
-    }
 
-    private static int firstSectorIdx(int clusterIdx) {
-        return Layout.getClusterDataStartSector(clusterIdx);
+        if (chain.length() > 0 && chain.last() == currentClusterIdx) {
+            chain.append(clusterIdx);
+        } else {
+            node.invalidateClusterChain();
+        }
     }
 
-    private static int lastSectorIdx(int clusterIdx) {
-        return Layout.getClusterDataLastSector(clusterIdx);
+    private int firstSectorIdx(int clusterIdx) {
+        return geometry.clusterStartSector(clusterIdx);
     }
 }
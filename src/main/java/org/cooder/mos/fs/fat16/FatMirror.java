@@ -0,0 +1,184 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import org.cooder.mos.device.IDisk;
+
+/**
+ * 第二份FAT的异步镜像。
+ * <p>
+ * 主FAT写回后登记变化的扇区，后台线程在第一个待同步扇区登记后至多{@code maxLagMillis}毫秒内，
+ * 把所有待同步扇区按当前簇表内容合并写入第二份FAT，分配路径上只多一次内存登记。
+ * <p>
+ * 同一个线程还负责定时提交：FAT设置了提交间隔时，间隔到期后即使没有新的修改也会把脏扇区写回。
+ */
+class FatMirror {
+    private final IDisk disk;
+    private final FAT16 fat;
+    private final long maxLagMillis;
+
+    // guarded by this
+    private final BitSet pending = new BitSet();
+    private long firstPendingTime;
+    private boolean closed = false;
+
+    /**
+     * 下一次定时提交FAT的时间，0表示没有待提交的修改
+     */
+    private long commitDeadline = 0;
+
+    /**
+     * 同步写盘的互斥锁，丢弃待同步扇区时需要等待正在进行的同步完成
+     */
+    private final Object syncLock = new Object();
+    private final Thread worker;
+
+    FatMirror(IDisk disk, FAT16 fat, long maxLagMillis) {
+        this.disk = disk;
+        this.fat = fat;
+        this.maxLagMillis = maxLagMillis;
+        this.worker = new Thread(this::run, "mos-fat-mirror");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * 登记主FAT中已写回的扇区区间[from, to)
+     */
+    synchronized void markDirty(int from, int to) {
+        if (closed) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            firstPendingTime = System.currentTimeMillis();
+            notifyAll();
+        }
+        pending.set(from, to);
+    }
+
+    /**
+     * 登记一次定时提交，到期后由后台线程调用{@link FAT16#commitIfDue()}
+     */
+    synchronized void scheduleCommit(long deadline) {
+        if (closed) {
+            return;
+        }
+        if (commitDeadline == 0 || deadline < commitDeadline) {
+            commitDeadline = deadline;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 立即同步所有待同步扇区
+     */
+    void sync() {
+        synchronized (syncLock) {
+            BitSet todo;
+            synchronized (this) {
+                todo = (BitSet) pending.clone();
+                pending.clear();
+            }
+
+            int from = todo.nextSetBit(0);
+            while (from >= 0) {
+                int to = todo.nextClearBit(from);
+                ByteBuffer buffer = fat.encodeSectors(from, to);
+                disk.writeSectors(fat.geometry().mirrorStart + from, to - from, buffer);
+                from = todo.nextSetBit(to);
+            }
+        }
+    }
+
+    /**
+     * 丢弃待同步扇区，格式化前调用
+     */
+    void discard() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程并同步剩余扇区
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    private void run() {
+        while (true) {
+            boolean commitDue;
+            boolean mirrorDue;
+            synchronized (this) {
+                try {
+                    while (!closed) {
+                        long next = nextDeadline();
+                        if (next == Long.MAX_VALUE) {
+                            wait();
+                            continue;
+                        }
+                        long remaining = next - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                commitDue = commitDeadline != 0 && commitDeadline <= now;
+                if (commitDue) {
+                    commitDeadline = 0;
+                }
+                mirrorDue = !pending.isEmpty() && firstPendingTime + maxLagMillis <= now;
+            }
+
+            // called without holding this monitor, the commit comes back through markDirty
+            try {
+                if (commitDue) {
+                    fat.commitIfDue();
+                }
+                if (mirrorDue) {
+                    sync();
+                }
+            } catch (RuntimeException e) {
+                // the mount-time check repairs whatever was not mirrored
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        long next = commitDeadline != 0 ? commitDeadline : Long.MAX_VALUE;
+        if (!pending.isEmpty()) {
+            next = Math.min(next, firstPendingTime + maxLagMillis);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.IDisk;
+
+/**
+ * 文件系统一致性检查。
+ * <p>
+ * 先复制一份簇表，再用fork-join并行遍历目录树，每个目录项沿簇链在引用位图中登记自己的簇：
+ * 登记时发现簇已被占用即为交叉链接，链中出现空闲簇或非法簇值即为坏链，
+ * 遍历结束后簇表中已占用但没有被任何目录项引用的簇即为丢失的簇链。
+ * <p>
+ * 簇链在中途坏掉的目录只遍历修复后保留的那部分簇，其中的目录项照常登记，不会被当作丢失的簇释放。
+ * <p>
+ * 修复在遍历结束后顺序进行：坏链和交叉链接在出问题的位置截断（交叉链接的簇留给先登记的目录项），
+ * 起始簇非法的目录项被清除，文件大小超出簇链的按簇链长度修正，最后释放丢失的簇。
+ * 修改FAT之前先在元数据日志中撤销所有可能曾属于目录、修复后不再属于任何目录项的簇，避免旧的目录镜像覆盖之后写入的文件数据。
+ * 检查应在没有其他写入的文件系统上进行，{@link org.cooder.mos.fs.FileSystem#fsck(boolean)}修复时由卷锁保证这一点。
+ */
+public class Fsck {
+    private final FAT16 fat;
+
+    private Geometry geometry;
+    private int[] table;
+    private AtomicLongArray refs;
+    private final Queue<Problem> problems = new ConcurrentLinkedQueue<Problem>();
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicInteger files = new AtomicInteger();
+
+    public Fsck(FAT16 fat) {
+        this.fat = fat;
+    }
+
+    /**
+     * 只检查，不修改磁盘
+     */
+    public Report check() {
+        return run(false);
+    }
+
+    /**
+     * 检查并修复发现的问题
+     */
+    public Report repair() {
+        return run(true);
+    }
+
+    private synchronized Report run(boolean repair) {
+        long start = System.currentTimeMillis();
+        geometry = fat.geometry();
+        table = fat.snapshot();
+        refs = new AtomicLongArray((table.length + 63) / 64);
+        problems.clear();
+        directories.set(0);
+        files.set(0);
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new DirectoryTask(fat.root, -1));
+        } finally {
+            pool.shutdown();
+        }
+
+        Report report = new Report();
+        report.directories = directories.get();
+        report.files = files.get();
+
+        BitSet lost = new BitSet(table.length);
+        for (int c = geometry.headClusterCount; c <= geometry.maxDataCluster; c++) {
+            if (isReferenced(c)) {
+                report.usedClusters++;
+            } else if (table[c] != FAT16.FREE_CLUSTER) {
+                lost.set(c);
+            }
+        }
+        report.lostClusters = lost.cardinality();
+        report.lostChains = countChains(lost);
+
+        for (Problem p : problems) {
+            switch (p.kind) {
+                case CROSS_LINKED:
+                    report.crossLinked++;
+                    break;
+                case BAD_CHAIN:
+                case BAD_START:
+                    report.badChains++;
+                    break;
+                default:
+                    report.sizeMismatches++;
+                    break;
+            }
+            report.messages.add(p.toString());
+        }
+        if (report.lostClusters > 0) {
+            report.messages.add(report.lostClusters + " lost clusters in " + report.lostChains + " chains");
+        }
+
+        if (repair && !report.isClean()) {
+            fat.revokeClusters(released(lost));
+            for (Problem p : problems) {
+                fix(p);
+            }
+            fat.freeClusters(lost);
+            fat.flush();
+            report.repaired = true;
+        }
+
+        report.elapsedMillis = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DirectoryTreeNode dir;
+
+        /**
+         * 目录簇链被截断时修复后保留的簇数，-1表示簇链完好
+         */
+        private final int kept;
+
+        DirectoryTask(DirectoryTreeNode dir, int kept) {
+            this.dir = dir;
+            this.kept = kept;
+        }
+
+        @Override
+        protected void compute() {
+            directories.incrementAndGet();
+
+            List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+            for (DirectoryTreeNode node : entries()) {
+                if (!node.valid()) {
+                    continue;
+                }
+
+                Problem p = claim(node);
+                if (node.isDir()) {
+                    // a truncated directory keeps its prefix, so the entries there still own their clusters
+                    if (p == null) {
+                        subtasks.add(new DirectoryTask(node, -1));
+                    } else if (p.kind != Kind.BAD_START && p.length > 0) {
+                        subtasks.add(new DirectoryTask(node, p.length));
+                    }
+                } else {
+                    files.incrementAndGet();
+                }
+            }
+            invokeAll(subtasks);
+        }
+
+        /**
+         * 簇链完好时按正常方式加载目录，否则只读取保留部分的簇，不跟随坏掉的链
+         */
+        private DirectoryTreeNode[] entries() {
+            if (kept < 0) {
+                return fat.loadEntries(dir);
+            }
+
+            int[] clusters = new int[kept];
+            int c = dir.getStartingCluster();
+            for (int i = 0; i < kept; i++) {
+                clusters[i] = c;
+                c = table[c];
+            }
+            return fat.readDirectoryClusters(dir, clusters);
+        }
+    }
+
+    /**
+     * 沿簇链在引用位图中登记目录项的簇
+     *
+     * @return 簇链的问题，簇链完好时返回null
+     */
+    private Problem claim(DirectoryTreeNode node) {
+        int c = node.getStartingCluster();
+        if (!fat.isDataCluster(c) || table[c] == FAT16.FREE_CLUSTER) {
+            return report(new Problem(Kind.BAD_START, node, -1, 0));
+        }
+
+        int prev = -1;
+        int length = 0;
+        while (true) {
+            if (!markReferenced(c)) {
+                return report(new Problem(prev < 0 ? Kind.BAD_START : Kind.CROSS_LINKED, node, prev, length));
+            }
+            length++;
+
+            int next = table[c];
+            if (next >= FAT16.END_OF_CHAIN) {
+                break;
+            }
+            if (!fat.isDataCluster(next) || table[next] == FAT16.FREE_CLUSTER) {
+                return report(new Problem(Kind.BAD_CHAIN, node, c, length));
+            }
+            prev = c;
+            c = next;
+        }
+
+        if (!node.isDir() && (long) length * geometry.clusterSize < node.getFileSize()) {
+            problems.add(new Problem(Kind.SIZE_MISMATCH, node, c, length));
+        }
+        return null;
+    }
+
+    private Problem report(Problem p) {
+        problems.add(p);
+        return p;
+    }
+
+    private boolean markReferenced(int c) {
+        int i = c >>> 6;
+        long bit = 1L << (c & 63);
+        while (true) {
+            long v = refs.get(i);
+            if ((v & bit) != 0) {
+                return false;
+            }
+            if (refs.compareAndSet(i, v, v | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean isReferenced(int c) {
+        return (refs.get(c >>> 6) & (1L << (c & 63))) != 0;
+    }
+
+    /**
+     * 丢失的簇按链头计数，没有被其他丢失簇指向的簇是一条链的开头
+     */
+    private int countChains(BitSet lost) {
+        BitSet pointed = new BitSet(table.length);
+        for (int c = lost.nextSetBit(0); c >= 0; c = lost.nextSetBit(c + 1)) {
+            int next = table[c];
+            if (fat.isDataCluster(next) && lost.get(next)) {
+                pointed.set(next);
+            }
+        }
+        BitSet heads = (BitSet) lost.clone();
+        heads.andNot(pointed);
+        return heads.isEmpty() && !lost.isEmpty() ? 1 : heads.cardinality();
+    }
+
+    /**
+     * 修复后不再被任何目录项引用、但可能存有目录镜像的簇：丢失的簇，
+     * 以及坏掉的目录项还指向的空闲簇
+     */
+    private BitSet released(BitSet lost) {
+        BitSet released = (BitSet) lost.clone();
+        for (Problem p : problems) {
+            if (!p.node.isDir()) {
+                continue;
+            }
+
+            int c;
+            if (p.kind == Kind.BAD_START) {
+                c = p.node.getStartingCluster();
+            } else if (p.kind == Kind.BAD_CHAIN) {
+                c = table[p.lastCluster];
+            } else {
+                continue;
+            }
+            if (fat.isDataCluster(c) && !isReferenced(c)) {
+                released.set(c);
+            }
+        }
+        return released;
+    }
+
+    private void fix(Problem p) {
+        DirectoryTreeNode node = p.node;
+        switch (p.kind) {
+            case BAD_START:
+                fat.dropTreeNode(node);
+                return;
+            case CROSS_LINKED:
+            case BAD_CHAIN:
+                fat.writeCluster(p.lastCluster, fat.getEndOfChain());
+                break;
+            default:
+                break;
+        }
+
+        node.invalidateClusterChain();
+        if (node.isDir()) {
+            node.fold();
+        } else {
+            long capacity = (long) p.length * geometry.clusterSize;
+            if (node.getFileSize() > capacity) {
+                node.setFileSize((int) capacity);
+            }
+        }
+        fat.writeDirectoryTreeNode(node);
+    }
+
+    private enum Kind {
+        BAD_START, CROSS_LINKED, BAD_CHAIN, SIZE_MISMATCH
+    }
+
+    private static class Problem {
+        final Kind kind;
+        final DirectoryTreeNode node;
+        /**
+         * 保留部分的最后一个簇
+         */
+        final int lastCluster;
+        /**
+         * 保留部分的簇数
+         */
+        final int length;
+        final String path;
+
+        Problem(Kind kind, DirectoryTreeNode node, int lastCluster, int length) {
+            this.kind = kind;
+            this.node = node;
+            this.lastCluster = lastCluster;
+            this.length = length;
+            this.path = node.getPath();
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case BAD_START:
+                    return path + ": invalid starting cluster " + node.getStartingCluster();
+                case CROSS_LINKED:
+                    return path + ": cross-linked after cluster " + lastCluster;
+                case BAD_CHAIN:
+                    return path + ": broken chain after cluster " + lastCluster;
+                default:
+                    return path + ": size " + node.getFileSize() + " exceeds " + length + " clusters";
+            }
+        }
+    }
+
+    /**
+     * 检查结果
+     */
+    public static class Report {
+        public int directories;
+        public int files;
+        public int usedClusters;
+        public int crossLinked;
+        public int badChains;
+        public int sizeMismatches;
+        public int lostClusters;
+        public int lostChains;
+        public boolean repaired;
+        public long elapsedMillis;
+        public final List<String> messages = new ArrayList<String>();
+
+        public boolean isClean() {
+            return crossLinked == 0 && badChains == 0 && sizeMismatches == 0 && lostClusters == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (String m : messages) {
+                sb.append(m).append('\n');
+            }
+            sb.append(directories).append(" directories, ").append(files).append(" files, ")
+                    .append(usedClusters).append(" clusters in use\n");
+            sb.append(crossLinked).append(" cross-linked, ").append(badChains).append(" broken, ")
+                    .append(sizeMismatches).append(" size mismatches, ").append(lostClusters).append(" lost clusters");
+            if (repaired) {
+                sb.append(" (repaired)");
+            }
+            sb.append(", ").append(elapsedMillis).append(" ms");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 检查一个磁盘镜像：{@code Fsck <image> [-r] [-j <journal>]}，-r表示修复
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: Fsck <image> [-r] [-j <journal>]");
+            System.exit(2);
+        }
+
+        boolean repair = false;
+        String journalPath = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-r")) {
+                repair = true;
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                journalPath = args[++i];
+            }
+        }
+
+        IDisk disk = new FileDisk(args[0]);
+        MetadataJournal journal = journalPath != null ? new MetadataJournal(journalPath, disk) : null;
+        FAT16 fat = new FAT16(disk, FAT16.DEFAULT_MIRROR_LAG_MILLIS, journal);
+        Report report;
+        try {
+            report = repair ? new Fsck(fat).repair() : new Fsck(fat).check();
+        } finally {
+            fat.close();
+            disk.close();
+        }
+
+        System.out.println(report);
+        System.exit(report.isClean() || report.repaired ? 0 : 1);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 卷的几何参数，格式化时选定并写入引导扇区，挂载时从引导扇区读出。
+ * <p>
+ * 卷从扇区0开始依次是引导扇区、两份FAT、根目录区和数据区，簇索引从扇区0起按簇大小编号，
+ * 落在数据区之前的簇视为头部簇，不参与分配。
+ */
+public final class Geometry {
+    /**
+     * 根目录区至少占用的扇区数，实际大小向上补齐到簇边界
+     */
+    private static final int MIN_ROOT_SECTORS = 32;
+
+    private static final int ENTRIES_PER_SECTOR = Layout.PER_SECTOR_SIZE / Layout.PER_DIRECTOR_ENTRY_SIZE;
+
+    /**
+     * 默认几何参数：2GB卷，32KB簇
+     */
+    public static final Geometry DEFAULT = new Geometry(Layout.SECTORS_PER_CLUSTER, Layout.SECTORS_PER_FAT,
+            Layout.ROOT_ENTRIES_COUNT, (int) (2 * 1024 * 1024 * 1024L / Layout.PER_SECTOR_SIZE));
+
+    public final int sectorsPerCluster;
+    public final int sectorsPerFat;
+    public final int rootEntriesCount;
+    public final int totalSectors;
+
+    public final int clusterSize;
+    public final int fatRegionStart;
+    public final int fatRegionSize;
+    public final int mirrorStart;
+    public final int rootDirectoryStart;
+    public final int rootDirectorySectors;
+    public final int dataRegionStart;
+    public final int headClusterCount;
+
+    /**
+     * 每份FAT的表项数
+     */
+    public final int fatEntries;
+
+    /**
+     * 最大的数据簇索引
+     */
+    public final int maxDataCluster;
+
+    /**
+     * @param sectorsPerCluster 每簇扇区数，1到128之间的2的幂
+     * @param sectorsPerFat     每份FAT的扇区数，1到256之间
+     * @param rootEntriesCount  根目录项数，每扇区16项的整数倍
+     * @param totalSectors      卷的扇区总数
+     */
+    public Geometry(int sectorsPerCluster, int sectorsPerFat, int rootEntriesCount, int totalSectors) {
+        if (sectorsPerCluster < 1 || sectorsPerCluster > 128 || Integer.bitCount(sectorsPerCluster) != 1) {
+            throw new IllegalArgumentException("sectors per cluster: " + sectorsPerCluster);
+        }
+        if (sectorsPerFat < 1 || sectorsPerFat > 256) {
+            throw new IllegalArgumentException("sectors per FAT: " + sectorsPerFat);
+        }
+        if (rootEntriesCount <= 0 || rootEntriesCount % ENTRIES_PER_SECTOR != 0) {
+            throw new IllegalArgumentException("root entries: " + rootEntriesCount);
+        }
+
+        this.sectorsPerCluster = sectorsPerCluster;
+        this.sectorsPerFat = sectorsPerFat;
+        this.rootEntriesCount = rootEntriesCount;
+        this.totalSectors = totalSectors;
+
+        this.clusterSize = sectorsPerCluster * Layout.PER_SECTOR_SIZE;
+        this.fatRegionStart = Layout.FAT_REGION_START;
+        this.fatRegionSize = Layout.NUM_OF_FAT_COPY * sectorsPerFat;
+        this.mirrorStart = fatRegionStart + sectorsPerFat;
+        this.rootDirectoryStart = fatRegionStart + fatRegionSize;
+        this.rootDirectorySectors = rootEntriesCount / ENTRIES_PER_SECTOR;
+        this.dataRegionStart = rootDirectoryStart + rootDirectorySectors;
+        this.headClusterCount = (dataRegionStart + sectorsPerCluster - 1) / sectorsPerCluster;
+        this.fatEntries = sectorsPerFat * Layout.PER_SECTOR_SIZE / 2;
+        this.maxDataCluster = Math.min(FAT16.MAX_DATA_CLUSTER, Math.min(fatEntries, totalSectors / sectorsPerCluster) - 1);
+
+        if (maxDataCluster < headClusterCount) {
+            throw new IllegalArgumentException("volume too small: " + totalSectors + " sectors");
+        }
+    }
+
+    /**
+     * 为指定大小的卷选择几何参数：FAT刚好覆盖卷上所有簇，根目录区补齐到簇边界
+     *
+     * @param totalSectors      卷的扇区总数
+     * @param sectorsPerCluster 每簇扇区数
+     */
+    public static Geometry forVolume(int totalSectors, int sectorsPerCluster) {
+        if (sectorsPerCluster < 1) {
+            throw new IllegalArgumentException("sectors per cluster: " + sectorsPerCluster);
+        }
+
+        int clusters = Math.min(totalSectors / sectorsPerCluster, FAT16.MAX_DATA_CLUSTER + 1);
+        int sectorsPerFat = Math.max(1, (clusters * 2 + Layout.PER_SECTOR_SIZE - 1) / Layout.PER_SECTOR_SIZE);
+        int rootStart = Layout.FAT_REGION_START + Layout.NUM_OF_FAT_COPY * sectorsPerFat;
+        int dataStart = align(rootStart + MIN_ROOT_SECTORS, sectorsPerCluster);
+        return new Geometry(sectorsPerCluster, sectorsPerFat, (dataStart - rootStart) * ENTRIES_PER_SECTOR, totalSectors);
+    }
+
+    /**
+     * 从引导扇区读出几何参数
+     *
+     * @param data        引导扇区
+     * @param diskSectors 磁盘扇区总数，引导扇区中没有记录卷大小时以此为准
+     * @return 几何参数，扇区不是有效的引导扇区时返回null
+     */
+    public static Geometry fromBootSector(byte[] data, int diskSectors) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.getShort(510) != Layout.BootSector.SIGNATURE || buf.getShort(11) != Layout.PER_SECTOR_SIZE) {
+            return null;
+        }
+
+        int sectorsPerCluster = buf.get(13) & 0xFF;
+        int rootEntriesCount = buf.getShort(17) & 0xFFFF;
+        int sectorsPerFat = buf.getShort(22) & 0xFFFF;
+        int totalSectors = buf.getInt(32);
+        if (totalSectors <= 0 || totalSectors > diskSectors) {
+            totalSectors = diskSectors;
+        }
+
+        try {
+            return new Geometry(sectorsPerCluster, sectorsPerFat, rootEntriesCount, totalSectors);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 簇的第一个扇区
+     */
+    public int clusterStartSector(int clusterIdx) {
+        return clusterIdx * sectorsPerCluster;
+    }
+
+    /**
+     * @return 可分配的数据簇数
+     */
+    public int dataClusterCount() {
+        return maxDataCluster + 1 - headClusterCount;
+    }
+
+    private static int align(int n, int unit) {
+        return (n + unit - 1) / unit * unit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d sectors, %d KB clusters, %d sectors per FAT, %d root entries",
+                totalSectors, clusterSize / 1024, sectorsPerFat, rootEntriesCount);
+    }
+}
@@ -16,6 +16,11 @@ public interface IFAT16 extends Closeable {
     // FAT表操作
     //
 
+    /**
+     * @return 卷的几何参数
+     */
+    Geometry geometry();
+
     /**
      * @return Value representing the end of the chain.
      * Should be {@code 0xFFF8} for FAT16
@@ -30,6 +35,30 @@ public interface IFAT16 extends Closeable {
      */
     int nextFreeCluster(int preCluster);
 
+    /**
+     * 申请一段连续的空闲簇并追加到簇链表尾部，优先紧接在链表尾节点之后
+     *
+     * @param preCluster 链表尾节点，不存在时传-1
+     * @param count      簇数量
+     * @return 第一个新分配的簇索引，找不到足够长的连续空闲簇时返回-1且不做任何分配
+     */
+    int allocateContiguous(int preCluster, int count);
+
+    /**
+     * @return 当前空闲的数据簇数量
+     */
+    int freeClusterCount();
+
+    /**
+     * @return 可分配的数据簇总数
+     */
+    int dataClusterCount();
+
+    /**
+     * @return 簇索引是否落在可分配的数据簇范围内
+     */
+    boolean isDataCluster(int clusterIdx);
+
     /**
      * 从指定的簇开始清空后续的簇
      *
@@ -53,6 +82,14 @@ public interface IFAT16 extends Closeable {
      */
     int clusterCountFrom(int clusterIdx);
 
+    /**
+     * 文件的簇链索引，首次访问时遍历FAT建立，之后缓存在节点上
+     *
+     * @param node 文件目录项节点
+     * @return 簇链索引
+     */
+    ClusterChain clusterChain(DirectoryTreeNode node);
+
     /**
      * 从文件分配表（FAT）里读取一个指定簇的值。
      *
@@ -109,9 +146,10 @@ public interface IFAT16 extends Closeable {
     DirectoryTreeNode createTreeNode(DirectoryTreeNode parent, String filename, boolean isDir);
 
     /**
-     * 删除一个目录项
+     * 删除一个目录项，并释放它占用的全部簇
      *
-     * @param node
+     * @param node 目录项节点，目录必须为空
+     * @throws IllegalStateException 目录不为空
      */
     void removeTreeNode(DirectoryTreeNode node);
 
@@ -120,7 +158,14 @@ public interface IFAT16 extends Closeable {
     //
 
     /**
-     * 格式化
+     * 按磁盘大小选择几何参数并格式化
      */
     void format();
+
+    /**
+     * 按指定的几何参数格式化
+     *
+     * @param geometry 几何参数，卷不能大于磁盘
+     */
+    void format(Geometry geometry);
 }
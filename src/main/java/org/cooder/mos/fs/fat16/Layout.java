@@ -10,6 +10,9 @@ package org.cooder.mos.fs.fat16;
 
 import java.nio.ByteBuffer;
 
+/**
+ * 卷布局常量。簇大小、FAT大小和根目录区大小是默认几何参数下的取值，实际卷的参数见{@link Geometry}
+ */
 public class Layout {
     public static final int RESERVED_SECTORS = 1;
     public static final int NUM_OF_FAT_COPY = 2;
@@ -24,19 +27,13 @@ public class Layout {
     public static final int RESERVED_REGION_SIZE = RESERVED_SECTORS;
 
     public static final int FAT_REGION_START = VOLUME_START + RESERVED_REGION_SIZE;
-    public static final int FAT_REGION_SIZE = NUM_OF_FAT_COPY * SECTORS_PER_FAT;
-
-    public static final int ROOT_DIRECTORY_REGION_START = FAT_REGION_START + FAT_REGION_SIZE;
-    public static final int ROOT_DIRECTORY_REGION_SIZE = (ROOT_ENTRIES_COUNT * PER_DIRECTOR_ENTRY_SIZE)
-            / PER_SECTOR_SIZE;
-
-    public static final int DATA_REGION_START = ROOT_DIRECTORY_REGION_START + ROOT_DIRECTORY_REGION_SIZE;
-    public static final int HEAD_CLUSTER_COUNT = DATA_REGION_START / SECTORS_PER_CLUSTER;
 
     /**
      * 引导扇区Layout，涉及到整形数的都是大端字节序
      */
     public static class BootSector {
+        public static final short SIGNATURE = 0x55AA;
+
         // 跳转指令，3 bytes
         final byte[] jmpCode = new byte[]{(byte) 0xEB, 0x3C, (byte) 0x90};
 
@@ -47,7 +44,7 @@ public class Layout {
         final short sectorSize = PER_SECTOR_SIZE;
 
         // 每簇扇区数，1 byte
-        final byte clusterWidth = SECTORS_PER_CLUSTER;
+        final byte clusterWidth;
 
         // 保留扇区数，2bytes
         final short reservedSectors = RESERVED_SECTORS;
@@ -56,13 +53,13 @@ public class Layout {
         final byte numOfFATCopy = NUM_OF_FAT_COPY;
 
         // 根目录项数
-        final short rootEntriesCount = ROOT_ENTRIES_COUNT;
+        final short rootEntriesCount;
 
         final short smallNumberOfSectors = (short) 0xFFFF;
 
         final byte mediaDescriptor = (byte) 0xFA;
 
-        final short sectorsPerFAT = SECTORS_PER_FAT;
+        final short sectorsPerFAT;
 
         final short sectorsPerTrack = 63;
 
@@ -70,7 +67,7 @@ public class Layout {
 
         final int hiddenSectors = 0;
 
-        final int largeNumberOfSectors = (short) 0xFFFF;
+        final int largeNumberOfSectors;
 
         final byte driveNumber = 0;
 
@@ -86,10 +83,22 @@ public class Layout {
 
         final byte[] bootstrapCode = new byte[448];
 
-        final short bootSectorSignature = 0x55AA;
+        final short bootSectorSignature = SIGNATURE;
+
+        public BootSector() {
+            this(Geometry.DEFAULT);
+        }
+
+        public BootSector(Geometry geometry) {
+            this.clusterWidth = (byte) geometry.sectorsPerCluster;
+            this.rootEntriesCount = (short) geometry.rootEntriesCount;
+            this.sectorsPerFAT = (short) geometry.sectorsPerFat;
+            this.largeNumberOfSectors = geometry.totalSectors;
+        }
 
         public byte[] toBytes() {
-            ByteBuffer buf = ByteBuffer.allocateDirect(512);
+            byte[] data = new byte[PER_SECTOR_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(data);
             buf.put(jmpCode);
             buf.put(oemName);
             buf.putShort(sectorSize);
@@ -113,10 +122,6 @@ public class Layout {
             buf.put(bootstrapCode);
             buf.putShort(bootSectorSignature);
 
-            buf.rewind();
-
-            byte[] data = new byte[512];
-            buf.get(data);
             return data;
         }
     }
@@ -148,63 +153,81 @@ public class Layout {
         public int fileSize;
 
         public byte[] toBytes() {
-            ByteBuffer buf = ByteBuffer.allocateDirect(32);
-            buf.put(fileName);
-            buf.put(extension);
-            buf.put(attrs);
-            buf.put(reserved);
-            buf.put(creation);
-            buf.putShort(createTime);
-            buf.putShort(createDate);
-            buf.putShort(lastAccessDate);
-            buf.putShort(lastWriteTime);
-            buf.putShort(lastWriteDate);
-            buf.putShort(startingCluster);
-            buf.putInt(fileSize);
-
-            buf.rewind();
-
-            byte[] data = new byte[32];
-            buf.get(data);
+            byte[] data = new byte[PER_DIRECTOR_ENTRY_SIZE];
+            encode(data, 0);
             return data;
         }
 
         public static DirectoryEntry from(byte[] data) {
-            ByteBuffer buf = ByteBuffer.allocateDirect(32);
-            buf.put(data);
-            buf.rewind();
+            return decode(data, 0);
+        }
 
-            DirectoryEntry e = new DirectoryEntry();
-            buf.get(e.fileName, 0, 8);
-            buf.get(e.extension, 0, 3);
-            e.attrs = buf.get();
-            e.reserved = buf.get();
-            e.creation = buf.get();
-            e.createTime = buf.getShort();
-            e.createDate = buf.getShort();
-            e.lastAccessDate = buf.getShort();
-            e.lastWriteTime = buf.getShort();
-            e.lastWriteDate = buf.getShort();
-            e.startingCluster = buf.getShort();
-            e.fileSize = buf.getInt();
+        /**
+         * 将目录项编码到dst中从off开始的32个字节，不分配额外内存
+         */
+        public void encode(byte[] dst, int off) {
+            System.arraycopy(fileName, 0, dst, off, 8);
+            System.arraycopy(extension, 0, dst, off + 8, 3);
+            dst[off + 11] = attrs;
+            dst[off + 12] = reserved;
+            dst[off + 13] = creation;
+            putShort(dst, off + 14, createTime);
+            putShort(dst, off + 16, createDate);
+            putShort(dst, off + 18, lastAccessDate);
+            putShort(dst, off + 20, lastWriteTime);
+            putShort(dst, off + 22, lastWriteDate);
+            putShort(dst, off + 24, startingCluster);
+            putInt(dst, off + 26, fileSize);
+            dst[off + 30] = 0;
+            dst[off + 31] = 0;
+        }
 
+        /**
+         * 从src中off开始的32个字节解码目录项
+         */
+        public static DirectoryEntry decode(byte[] src, int off) {
+            DirectoryEntry e = new DirectoryEntry();
+            System.arraycopy(src, off, e.fileName, 0, 8);
+            System.arraycopy(src, off + 8, e.extension, 0, 3);
+            e.attrs = src[off + 11];
+            e.reserved = src[off + 12];
+            e.creation = src[off + 13];
+            e.createTime = getShort(src, off + 14);
+            e.createDate = getShort(src, off + 16);
+            e.lastAccessDate = getShort(src, off + 18);
+            e.lastWriteTime = getShort(src, off + 20);
+            e.lastWriteDate = getShort(src, off + 22);
+            e.startingCluster = getShort(src, off + 24);
+            e.fileSize = getInt(src, off + 26);
             return e;
         }
 
+        private static void putShort(byte[] b, int off, short v) {
+            b[off] = (byte) (v >>> 8);
+            b[off + 1] = (byte) v;
+        }
+
+        private static void putInt(byte[] b, int off, int v) {
+            b[off] = (byte) (v >>> 24);
+            b[off + 1] = (byte) (v >>> 16);
+            b[off + 2] = (byte) (v >>> 8);
+            b[off + 3] = (byte) v;
+        }
+
+        private static short getShort(byte[] b, int off) {
+            return (short) (((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF));
+        }
+
+        private static int getInt(byte[] b, int off) {
+            return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+        }
+
         public String toString() {
             return String.format("filename: %s, startCluster: %d", new String(fileName), startingCluster);
         }
     }
 
-    public static int getClusterDataStartSector(int clusterIdx) {
-        return clusterIdx * SECTORS_PER_CLUSTER;
-    }
-
     public static int getSectorDataStartPos(int sectorIdx) {
         return sectorIdx * PER_SECTOR_SIZE;
     }
-
-    public static int getClusterDataLastSector(int clusterIdx) {
-        return getClusterDataStartSector(clusterIdx) + SECTORS_PER_CLUSTER - 1;
-    }
 }
@@ -0,0 +1,441 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.cooder.mos.device.IDisk;
+
+/**
+ * 元数据预写日志，保存在磁盘镜像旁的独立文件中。
+ * <p>
+ * FAT扇区和目录扇区的修改以整扇区镜像的形式顺序追加到日志，同时提交的事务合并为一次落盘（组提交），
+ * 扇区的最新镜像暂存在内存中并覆盖磁盘上的旧内容，日志超过阈值或关闭时才批量写回原位置（检查点）。
+ * 挂载时重放日志中已提交的事务，未完整提交的事务被丢弃。
+ * <p>
+ * 扇区被释放给文件数据使用前需要撤销（revoke），防止检查点或重放用旧镜像覆盖文件数据。
+ */
+public class MetadataJournal implements Closeable {
+    private static final byte RECORD_SECTOR = 1;
+    private static final byte RECORD_REVOKE = 2;
+    private static final byte RECORD_COMMIT = 3;
+
+    /**
+     * 日志文件超过该大小时做一次检查点
+     */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+    private final IDisk disk;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long checkpointBytes;
+
+    // guarded by this
+    private final Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private long appendedLsn = 0;
+    private long durableLsn = 0;
+    private boolean forcing = false;
+    private long journalSize;
+
+    /**
+     * 写日志失败的原因。失败那一批以及之后的事务都没有落盘，提交一律失败，直到{@link #reset()}
+     */
+    private IOException failure;
+
+    private int replayedTransactions = 0;
+
+    public MetadataJournal(String path, IDisk disk) throws IOException {
+        this(path, disk, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * @param path            日志文件路径
+     * @param disk            元数据所在的磁盘
+     * @param checkpointBytes 日志文件超过该大小时做一次检查点
+     */
+    public MetadataJournal(String path, IDisk disk, long checkpointBytes) throws IOException {
+        this.disk = disk;
+        this.raf = new RandomAccessFile(path, "rw");
+        this.channel = raf.getChannel();
+        this.checkpointBytes = checkpointBytes;
+        this.journalSize = channel.size();
+    }
+
+    public Transaction begin() {
+        return new Transaction();
+    }
+
+    /**
+     * 提交事务，返回时事务已落盘，期间其他线程提交的事务合并为同一次落盘
+     */
+    public void commit(Transaction tx) {
+        long lsn;
+        synchronized (this) {
+            checkFailure();
+            try {
+                DataOutputStream out = new DataOutputStream(batch);
+                for (Record r : tx.records) {
+                    r.writeTo(out);
+                    r.applyTo(pending);
+                }
+                lsn = ++appendedLsn;
+                new Record(RECORD_COMMIT, 0, 0, null, lsn).writeTo(out);
+            } catch (IOException e) {
+                throw new IllegalStateException("journal write failed", e);
+            }
+        }
+
+        awaitDurable(lsn);
+
+        boolean full;
+        synchronized (this) {
+            full = journalSize >= checkpointBytes;
+        }
+        if (full) {
+            checkpoint();
+        }
+    }
+
+    private void awaitDurable(long lsn) {
+        while (true) {
+            byte[] data;
+            long target;
+            synchronized (this) {
+                while (forcing && durableLsn < lsn) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("interrupted while waiting for journal commit", e);
+                    }
+                }
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                checkFailure();
+
+                // become the leader of this group
+                forcing = true;
+                data = batch.toByteArray();
+                batch.reset();
+                target = appendedLsn;
+            }
+
+            IOException error = null;
+            boolean done = false;
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                long pos = journalSize;
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+                channel.force(false);
+                done = true;
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    forcing = false;
+                    if (done) {
+                        journalSize += data.length;
+                        durableLsn = target;
+                    } else {
+                        // the batch is gone, no later lsn may be reported durable
+                        failure = error != null ? error : new IOException("journal write aborted");
+                    }
+                    notifyAll();
+                }
+            }
+            if (error != null) {
+                throw new IllegalStateException("journal write failed", error);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("journal write failed", failure);
+        }
+    }
+
+    /**
+     * 把所有暂存的扇区镜像写回原位置，然后清空日志
+     */
+    public synchronized void checkpoint() {
+        awaitDurable(appendedLsn);
+
+        List<Integer> sectors = new ArrayList<Integer>(pending.keySet());
+        Collections.sort(sectors);
+        int i = 0;
+        while (i < sectors.size()) {
+            int j = i + 1;
+            while (j < sectors.size() && sectors.get(j) == sectors.get(j - 1) + 1) {
+                j++;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((j - i) * Layout.PER_SECTOR_SIZE);
+            for (int k = i; k < j; k++) {
+                buffer.put(pending.get(sectors.get(k)));
+            }
+            buffer.rewind();
+            disk.writeMetadataSectors(sectors.get(i), j - i, buffer);
+            i = j;
+        }
+        disk.flush();
+        pending.clear();
+        truncate();
+    }
+
+    /**
+     * 重放日志中已提交的事务并写回原位置，挂载前调用
+     *
+     * @return 重放的事务数
+     */
+    public synchronized int recover() {
+        ByteBuffer log;
+        try {
+            log = ByteBuffer.allocate((int) channel.size());
+            while (log.hasRemaining() && channel.read(log, log.position()) >= 0) {
+                // read the whole log
+            }
+            log.flip();
+        } catch (IOException e) {
+            throw new IllegalStateException("journal read failed", e);
+        }
+
+        List<Record> txn = new ArrayList<Record>();
+        int count = 0;
+        while (true) {
+            Record r = Record.readFrom(log);
+            if (r == null) {
+                break;
+            }
+            if (r.type == RECORD_COMMIT) {
+                for (Record op : txn) {
+                    op.applyTo(pending);
+                }
+                txn.clear();
+                count++;
+            } else {
+                txn.add(r);
+            }
+        }
+
+        replayedTransactions = count;
+        checkpoint();
+        return count;
+    }
+
+    /**
+     * @return 最近一次挂载时重放的事务数
+     */
+    public int getReplayedTransactions() {
+        return replayedTransactions;
+    }
+
+    /**
+     * 读取扇区，暂存的镜像优先于磁盘内容
+     */
+    public synchronized void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+        int start = buffer.position();
+        disk.readMetadataSectors(startSectorIdx, count, buffer);
+
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            byte[] image = pending.get(startSectorIdx + i);
+            if (image != null) {
+                ByteBuffer dst = buffer.duplicate();
+                dst.position(start + i * Layout.PER_SECTOR_SIZE);
+                dst.put(image);
+            }
+        }
+    }
+
+    /**
+     * 丢弃所有暂存的镜像和日志内容，格式化前调用
+     */
+    public synchronized void reset() {
+        // everything logged so far is about to be discarded, including a failed batch
+        while (forcing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for journal commit", e);
+            }
+        }
+        batch.reset();
+        durableLsn = appendedLsn;
+        failure = null;
+        pending.clear();
+        truncate();
+    }
+
+    private void truncate() {
+        try {
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new IllegalStateException("journal truncate failed", e);
+        }
+        journalSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        channel.close();
+        raf.close();
+    }
+
+    /**
+     * 元数据事务，提交前只在内存中累积
+     */
+    public static class Transaction {
+        private final List<Record> records = new ArrayList<Record>();
+
+        private Transaction() {
+        }
+
+        /**
+         * 记录从startSectorIdx开始的count个扇区的新内容
+         */
+        public void write(int startSectorIdx, int count, ByteBuffer buffer) {
+            ByteBuffer src = buffer.duplicate();
+            for (int i = 0; i < count; i++) {
+                byte[] image = new byte[Layout.PER_SECTOR_SIZE];
+                src.get(image);
+                records.add(new Record(RECORD_SECTOR, startSectorIdx + i, 1, image, 0));
+            }
+        }
+
+        /**
+         * 撤销从startSectorIdx开始的count个扇区的所有镜像，这些扇区不再是元数据
+         */
+        public void revoke(int startSectorIdx, int count) {
+            records.add(new Record(RECORD_REVOKE, startSectorIdx, count, null, 0));
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final int sectorIdx;
+        final int count;
+        final byte[] image;
+        final long lsn;
+
+        Record(byte type, int sectorIdx, int count, byte[] image, long lsn) {
+            this.type = type;
+            this.sectorIdx = sectorIdx;
+            this.count = count;
+            this.image = image;
+            this.lsn = lsn;
+        }
+
+        void applyTo(Map<Integer, byte[]> sectors) {
+            if (type == RECORD_SECTOR) {
+                sectors.put(sectorIdx, image);
+            } else if (type == RECORD_REVOKE) {
+                Iterator<Integer> it = sectors.keySet().iterator();
+                while (it.hasNext()) {
+                    int idx = it.next();
+                    if (idx >= sectorIdx && idx < sectorIdx + count) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(body);
+            d.writeByte(type);
+            if (type == RECORD_SECTOR) {
+                d.writeInt(sectorIdx);
+                d.write(image);
+            } else if (type == RECORD_REVOKE) {
+                d.writeInt(sectorIdx);
+                d.writeInt(count);
+            } else {
+                d.writeLong(lsn);
+            }
+
+            byte[] bytes = body.toByteArray();
+            out.write(bytes);
+            out.writeInt(crc(bytes, 0, bytes.length));
+        }
+
+        /**
+         * @return 下一条完整且校验通过的记录，日志结束或损坏时返回null
+         */
+        static Record readFrom(ByteBuffer log) {
+            int start = log.position();
+            if (!log.hasRemaining()) {
+                return null;
+            }
+
+            byte type = log.get();
+            int bodySize;
+            if (type == RECORD_SECTOR) {
+                bodySize = 4 + Layout.PER_SECTOR_SIZE;
+            } else if (type == RECORD_REVOKE) {
+                bodySize = 8;
+            } else if (type == RECORD_COMMIT) {
+                bodySize = 8;
+            } else {
+                return null;
+            }
+            if (log.remaining() < bodySize + 4) {
+                return null;
+            }
+
+            Record r;
+            if (type == RECORD_SECTOR) {
+                int idx = log.getInt();
+                byte[] image = new byte[Layout.PER_SECTOR_SIZE];
+                log.get(image);
+                r = new Record(type, idx, 1, image, 0);
+            } else if (type == RECORD_REVOKE) {
+                r = new Record(type, log.getInt(), log.getInt(), null, 0);
+            } else {
+                r = new Record(type, 0, 0, null, log.getLong());
+            }
+
+            int end = log.position();
+            int expected = log.getInt();
+            byte[] bytes = new byte[end - start];
+            ByteBuffer dup = log.duplicate();
+            dup.position(start);
+            dup.get(bytes);
+            return crc(bytes, 0, bytes.length) == expected ? r : null;
+        }
+
+        private static int crc(byte[] b, int off, int len) {
+            CRC32 crc = new CRC32();
+            crc.update(b, off, len);
+            return (int) crc.getValue();
+        }
+    }
+}
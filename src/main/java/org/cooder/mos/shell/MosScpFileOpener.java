@@ -147,6 +147,6 @@ public class MosScpFileOpener extends DefaultScpFileOpener {
     public OutputStream openWrite(Session session, Path file, long size, Set<PosixFilePermission> permissions, OpenOption... options)
             throws IOException {
         String[] paths = Utils.normalizePath(file.toString());
-        return new FileOutputStream(new MosFile(paths), FileSystem.WRITE);
+        return new FileOutputStream(new MosFile(paths), FileSystem.WRITE, size);
     }
 }
\ No newline at end of file
@@ -15,12 +15,15 @@ import org.cooder.mos.MosSystem;
 import org.cooder.mos.Utils;
 import org.cooder.mos.fs.FileDescriptor;
 import org.cooder.mos.fs.IFileSystem;
+import org.cooder.mos.fs.fat16.Geometry;
+import org.cooder.mos.fs.fat16.Layout;
 import org.cooder.mos.shell.command.*;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.IOException;
@@ -30,7 +33,7 @@ import java.io.PrintStream;
 
 @Command(name = "",
         subcommands = {HelpCommand.class, Mkdir.class, ListCommand.class, Cat.class, Echo.class, Pwd.class,
-                Remove.class, Touch.class})
+                Remove.class, Touch.class, DiskFree.class, FileSystemCheck.class})
 public class Shell implements Runnable {
 
     private FileDescriptor current;
@@ -84,10 +87,16 @@ public class Shell implements Runnable {
     }
 
     @Command(name = "format", hidden = true)
-    public void format() throws IOException {
-        MosSystem.fileSystem().format();
-        current = MosSystem.fileSystem().find(new String[]{"/"});
-        out.println("disk format success.");
+    public void format(@Option(names = {"-c"}, paramLabel = "<KB>", description = "cluster size in KB") Integer clusterKb) throws IOException {
+        IFileSystem fs = MosSystem.fileSystem();
+        if (clusterKb == null) {
+            fs.format();
+        } else {
+            int sectors = clusterKb * 1024 / Layout.PER_SECTOR_SIZE;
+            fs.format(Geometry.forVolume(fs.geometry().totalSectors, sectors));
+        }
+        current = fs.find(new String[]{"/"});
+        out.println("disk format success: " + fs.geometry());
     }
 
     @Command(name = "cd")
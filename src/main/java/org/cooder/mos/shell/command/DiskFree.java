@@ -0,0 +1,34 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.shell.command;
+
+import org.cooder.mos.MosSystem;
+import org.cooder.mos.fs.IFileSystem;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Help.TextTable;
+
+@Command(name = "df")
+public class DiskFree extends MosCommand {
+
+    @Override
+    public int runCommand() {
+        IFileSystem fs = MosSystem.fileSystem();
+        long total = fs.totalSpace() / 1024;
+        long free = fs.freeSpace() / 1024;
+        long used = total - free;
+
+        TextTable textTable = forColumnWidths(14, 14, 14, 6);
+        textTable.addRowValues("1K-blocks", "Used", "Available", "Use%");
+        textTable.addRowValues(String.valueOf(total), String.valueOf(used), String.valueOf(free),
+                (total == 0 ? 0 : used * 100 / total) + "%");
+        out.print(textTable.toString());
+        return 0;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.shell.command;
+
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.fat16.Fsck;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "fsck")
+public class FileSystemCheck extends MosCommand {
+    @Option(names = {"-r"}, description = "repair problems found")
+    private boolean repair;
+
+    @Override
+    public int runCommand() {
+        Fsck.Report report = FileSystem.instance.fsck(repair);
+        out.println(report);
+        return report.isClean() || report.repaired ? 0 : 1;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.cooder.mos.device.IDisk;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.IFileSystem;
+import org.cooder.mos.fs.fat16.Layout;
+
+/**
+ * 测试共用的数据构造、文件读写和磁盘包装
+ */
+public final class TestUtils {
+
+    private TestUtils() {
+    }
+
+    /**
+     * @return 内容由seed决定的字节数组
+     */
+    public static byte[] data(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    /**
+     * @return 内容由seed决定的count个扇区
+     */
+    public static byte[] sectors(int count, int seed) {
+        return data(count * Layout.PER_SECTOR_SIZE, seed);
+    }
+
+    public static byte[] sector(int seed) {
+        return sectors(1, seed);
+    }
+
+    public static String[] path(String path) {
+        return Utils.normalizePath(path);
+    }
+
+    /**
+     * 以覆盖写方式写入整个文件，文件不存在时创建
+     */
+    public static void write(IFileSystem fs, String path, byte[] data) throws IOException {
+        FileDescriptor fd = fs.open(path(path), IFileSystem.WRITE);
+        try {
+            fs.write(fd, data, 0, data.length);
+        } finally {
+            fs.close(fd);
+        }
+    }
+
+    /**
+     * 读取整个文件
+     */
+    public static byte[] read(IFileSystem fs, String path) throws IOException {
+        FileDescriptor fd = fs.open(path(path), IFileSystem.READ);
+        try {
+            byte[] data = new byte[fd.getFileSize()];
+            int n = 0;
+            while (n < data.length) {
+                int ret = fs.read(fd, data, n, data.length - n);
+                if (ret < 0) {
+                    break;
+                }
+                n += ret;
+            }
+            return Arrays.copyOf(data, n);
+        } finally {
+            fs.close(fd);
+        }
+    }
+
+    /**
+     * 记录读写了哪些扇区的磁盘包装
+     */
+    public static class RecordingDisk implements IDisk {
+        private final IDisk disk;
+        private final BitSet read = new BitSet();
+        private final BitSet written = new BitSet();
+        private final List<int[]> writes = new ArrayList<int[]>();
+
+        public RecordingDisk(IDisk disk) {
+            this.disk = disk;
+        }
+
+        /**
+         * @return 记录开始以来读过的扇区
+         */
+        public synchronized BitSet readSectors() {
+            return (BitSet) read.clone();
+        }
+
+        /**
+         * @return 记录开始以来写过的扇区
+         */
+        public synchronized BitSet writtenSectors() {
+            return (BitSet) written.clone();
+        }
+
+        /**
+         * @return 记录开始以来的每次写入，{起始扇区, 扇区数}
+         */
+        public synchronized List<int[]> writes() {
+            return new ArrayList<int[]>(writes);
+        }
+
+        public synchronized void reset() {
+            read.clear();
+            written.clear();
+            writes.clear();
+        }
+
+        private synchronized void recordRead(int start, int count) {
+            read.set(start, start + count);
+        }
+
+        private synchronized void recordWrite(int start, int count) {
+            written.set(start, start + count);
+            writes.add(new int[]{start, count});
+        }
+
+        @Override
+        public int sectorCount() {
+            return disk.sectorCount();
+        }
+
+        @Override
+        public byte[] readSector(int sectorIdx) {
+            recordRead(sectorIdx, 1);
+            return disk.readSector(sectorIdx);
+        }
+
+        @Override
+        public void readSector(int sectorIdx, byte[] buffer) {
+            recordRead(sectorIdx, 1);
+            disk.readSector(sectorIdx, buffer);
+        }
+
+        @Override
+        public void writeSector(int sectorIdx, byte[] sectorData) {
+            recordWrite(sectorIdx, 1);
+            disk.writeSector(sectorIdx, sectorData);
+        }
+
+        @Override
+        public void readSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+            recordRead(startSectorIdx, count);
+            disk.readSectors(startSectorIdx, count, buffer);
+        }
+
+        @Override
+        public void writeSectors(int startSectorIdx, int count, ByteBuffer buffer) {
+            recordWrite(startSectorIdx, count);
+            disk.writeSectors(startSectorIdx, count, buffer);
+        }
+
+        @Override
+        public void flush() {
+            disk.flush();
+        }
+
+        @Override
+        public void clear() throws IOException {
+            disk.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            disk.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.api;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncFileSystemTest {
+    private FileSystem fs = FileSystem.instance;
+    private AsyncFileSystem afs;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+        afs = new AsyncFileSystem(fs, 2, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        afs.close();
+        fs.shutdown();
+    }
+
+    @Test
+    public void pipelinedWritesAndReads() throws Exception {
+        List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 50; i++) {
+            writes.add(afs.writeAll("/f" + i, data(1000 + i * 37, i)));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(data(1000 + i * 37, i), afs.readAll("/f" + i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(50, afs.list("/").get(10, TimeUnit.SECONDS).length);
+        assertTrue(afs.delete("/f0").get(10, TimeUnit.SECONDS));
+        assertFalse(afs.delete("/f0").get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void ioErrorCompletesExceptionally() throws Exception {
+        try {
+            afs.readAll("/missing").join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void submitAfterCloseIsRejected() throws Exception {
+        afs.close();
+        CompletableFuture<byte[]> f = afs.readAll("/f");
+        assertTrue(f.isCompletedExceptionally());
+        try {
+            f.join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
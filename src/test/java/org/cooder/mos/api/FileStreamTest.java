@@ -0,0 +1,97 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.api;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.read;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.IFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileStreamTest {
+    private FileSystem fs = FileSystem.instance;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void bulkAndSingleByteWritesMix() throws IOException {
+        int clusterSize = fs.geometry().clusterSize;
+        byte[] data = data(3 * clusterSize + 100, 1);
+
+        FileOutputStream out = new FileOutputStream(new MosFile("/f"), IFileSystem.WRITE);
+        try {
+            // cross cluster boundaries both inside a bulk write and with single bytes
+            out.write(data, 0, clusterSize - 1);
+            out.write(data[clusterSize - 1]);
+            out.write(data[clusterSize]);
+            out.write(data, clusterSize + 1, data.length - clusterSize - 1);
+        } finally {
+            out.close();
+        }
+
+        assertArrayEquals(data, read(fs, "/f"));
+    }
+
+    @Test
+    public void bulkReadsInOddChunks() throws IOException {
+        byte[] data = data(5 * fs.geometry().clusterSize + 7, 2);
+        FileOutputStream out = new FileOutputStream(new MosFile("/f"), IFileSystem.WRITE);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        FileInputStream in = new FileInputStream(new MosFile("/f"));
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try {
+            byte[] chunk = new byte[1000];
+            assertEquals(0, in.read(chunk, 0, 0));
+            int n;
+            while ((n = in.read(chunk, 1, 999)) > 0) {
+                copy.write(chunk, 1, n);
+            }
+            assertEquals(-1, n);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(data, copy.toByteArray());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void bulkReadChecksBounds() throws IOException {
+        write(fs, "/f", data(10, 3));
+        FileInputStream in = new FileInputStream(new MosFile("/f"));
+        try {
+            in.read(new byte[4], 2, 3);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.api;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MosFileChannelTest {
+    private FileSystem fs = FileSystem.instance;
+    private int clusterSize;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+        clusterSize = fs.geometry().clusterSize;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void overwriteInTheMiddle() throws IOException {
+        byte[] expected = data(3 * clusterSize + 100, 1);
+        MosFileChannel channel = new MosFileChannel(new MosFile("/f"));
+        try {
+            channel.write(ByteBuffer.wrap(expected));
+
+            // across a cluster boundary, and inside one sector
+            byte[] patch = data(100, 2);
+            channel.write(ByteBuffer.wrap(patch), clusterSize - 50);
+            System.arraycopy(patch, 0, expected, clusterSize - 50, patch.length);
+            channel.write(ByteBuffer.wrap(patch, 0, 7), 2 * clusterSize + 300);
+            System.arraycopy(patch, 0, expected, 2 * clusterSize + 300, 7);
+
+            assertEquals(expected.length, channel.size());
+            assertEquals(expected.length, channel.position());
+        } finally {
+            channel.close();
+        }
+        assertArrayEquals(expected, read(fs, "/f"));
+    }
+
+    @Test
+    public void writePastEndFillsGapWithZeros() throws IOException {
+        MosFileChannel channel = new MosFileChannel(new MosFile("/f"));
+        try {
+            channel.write(ByteBuffer.wrap(data(100, 3)));
+            long far = 2L * clusterSize + 7;
+            channel.write(ByteBuffer.wrap(data(10, 4)), far);
+            assertEquals(far + 10, channel.size());
+            // positional writes leave the position alone
+            assertEquals(100, channel.position());
+        } finally {
+            channel.close();
+        }
+
+        byte[] expected = new byte[2 * clusterSize + 17];
+        System.arraycopy(data(100, 3), 0, expected, 0, 100);
+        System.arraycopy(data(10, 4), 0, expected, 2 * clusterSize + 7, 10);
+        assertArrayEquals(expected, read(fs, "/f"));
+        assertTrue(fs.fsck(false).isClean());
+    }
+
+    @Test
+    public void truncateThenRead() throws IOException {
+        byte[] data = data(3 * clusterSize, 5);
+        long free = fs.freeSpace();
+        MosFileChannel channel = new MosFileChannel(new MosFile("/f"));
+        try {
+            channel.write(ByteBuffer.wrap(data));
+            channel.truncate(clusterSize + 5);
+            assertEquals(clusterSize + 5, channel.size());
+            assertEquals(clusterSize + 5, channel.position());
+            assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+
+            ByteBuffer head = ByteBuffer.allocate(clusterSize + 100);
+            assertEquals(clusterSize + 5, channel.read(head, 0));
+            assertArrayEquals(Arrays.copyOf(data, clusterSize + 5), Arrays.copyOf(head.array(), clusterSize + 5));
+
+            channel.write(ByteBuffer.wrap(data(10, 6)));
+            assertEquals(clusterSize + 15, channel.size());
+        } finally {
+            channel.close();
+        }
+
+        // only the two clusters still in use are taken
+        assertEquals(free - 2 * clusterSize, fs.freeSpace());
+        byte[] expected = Arrays.copyOf(data, clusterSize + 15);
+        System.arraycopy(data(10, 6), 0, expected, clusterSize + 5, 10);
+        assertArrayEquals(expected, read(fs, "/f"));
+        assertTrue(fs.fsck(false).isClean());
+    }
+
+    @Test
+    public void positionAndSizeAfterReopen() throws IOException {
+        byte[] data = data(clusterSize + 300, 7);
+        MosFileChannel channel = new MosFileChannel(new MosFile("/f"));
+        channel.write(ByteBuffer.wrap(data));
+        channel.close();
+
+        channel = new MosFileChannel(new MosFile("/f"));
+        try {
+            assertEquals(0, channel.position());
+            assertEquals(data.length, channel.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(200);
+            assertEquals(200, channel.read(buffer));
+            assertEquals(200, channel.position());
+            assertArrayEquals(Arrays.copyOf(data, 200), buffer.array());
+
+            channel.position(clusterSize);
+            buffer.clear();
+            assertEquals(200, channel.read(buffer));
+            assertArrayEquals(Arrays.copyOfRange(data, clusterSize, clusterSize + 200), buffer.array());
+            assertEquals(clusterSize + 200, channel.position());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void closedChannelRejectsIo() throws IOException {
+        MosFileChannel channel = new MosFileChannel(new MosFile("/f"));
+        channel.close();
+        channel.read(ByteBuffer.allocate(1));
+    }
+}
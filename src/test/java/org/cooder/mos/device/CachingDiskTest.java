@@ -0,0 +1,80 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import static org.cooder.mos.TestUtils.sector;
+import static org.cooder.mos.TestUtils.sectors;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.cooder.mos.fs.fat16.Layout;
+import org.junit.Test;
+
+public class CachingDiskTest {
+    private final RamDisk ram = new RamDisk(1024 * 1024);
+    private final CachingDisk disk = new CachingDisk(ram, 16);
+
+    @Test
+    public void metadataReadsAreCached() {
+        disk.writeSectors(10, 4, ByteBuffer.wrap(sectors(4, 1)));
+
+        assertArrayEquals(sectors(4, 1), readMetadata(10, 4));
+        assertEquals(4, disk.getMissCount());
+        assertArrayEquals(sectors(4, 1), readMetadata(10, 4));
+        assertEquals(4, disk.getHitCount());
+        assertEquals(4, disk.size());
+    }
+
+    @Test
+    public void dataWriteUpdatesCachedCopy() {
+        readMetadata(10, 2);
+        disk.writeSectors(10, 2, ByteBuffer.wrap(sectors(2, 7)));
+
+        assertArrayEquals(sectors(2, 7), readMetadata(10, 2));
+        assertArrayEquals(sectors(2, 7), read(10, 2));
+        assertArrayEquals(sector(7), ram.readSector(10));
+    }
+
+    @Test
+    public void metadataWritesAreWrittenBackOnFlush() {
+        disk.writeMetadataSectors(20, 3, ByteBuffer.wrap(sectors(3, 5)));
+
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], ram.readSector(20));
+        assertArrayEquals(sectors(3, 5), read(20, 3));
+
+        disk.flush();
+        ByteBuffer buffer = ByteBuffer.allocate(3 * Layout.PER_SECTOR_SIZE);
+        ram.readSectors(20, 3, buffer);
+        assertArrayEquals(sectors(3, 5), buffer.array());
+    }
+
+    @Test
+    public void evictionWritesBackDirtySectors() {
+        disk.writeMetadataSectors(0, 16, ByteBuffer.wrap(sectors(16, 3)));
+        readMetadata(100, 8);
+
+        assertEquals(16, disk.size());
+        assertArrayEquals(sector(3), ram.readSector(0));
+        assertArrayEquals(sectors(16, 3), read(0, 16));
+    }
+
+    private byte[] readMetadata(int start, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count * Layout.PER_SECTOR_SIZE);
+        disk.readMetadataSectors(start, count, buffer);
+        return buffer.array();
+    }
+
+    private byte[] read(int start, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count * Layout.PER_SECTOR_SIZE);
+        disk.readSectors(start, count, buffer);
+        return buffer.array();
+    }
+}
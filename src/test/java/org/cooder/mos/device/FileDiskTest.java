@@ -0,0 +1,115 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import static org.cooder.mos.TestUtils.sector;
+import static org.cooder.mos.TestUtils.sectors;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.cooder.mos.fs.fat16.Layout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileDiskTest {
+    private static final long CAPACITY = 64L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File image;
+    private FileDisk disk;
+
+    @Before
+    public void setUp() throws IOException {
+        image = new File(folder.getRoot(), "disk.img");
+        disk = new FileDisk(image.getPath(), CAPACITY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        disk.close();
+    }
+
+    @Test
+    public void bulkWriteAndReadRoundTrip() {
+        ByteBuffer src = ByteBuffer.allocate(10 * Layout.PER_SECTOR_SIZE);
+        src.position(Layout.PER_SECTOR_SIZE);
+        src.put(sectors(8, 1));
+        src.position(Layout.PER_SECTOR_SIZE);
+        disk.writeSectors(100, 8, src);
+        assertEquals(9 * Layout.PER_SECTOR_SIZE, src.position());
+
+        ByteBuffer dst = ByteBuffer.allocate(8 * Layout.PER_SECTOR_SIZE);
+        disk.readSectors(100, 8, dst);
+        assertEquals(dst.capacity(), dst.position());
+        assertArrayEquals(sectors(8, 1), dst.array());
+
+        // single-sector calls see the same data
+        ByteBuffer third = ByteBuffer.wrap(sectors(8, 1), 2 * Layout.PER_SECTOR_SIZE, Layout.PER_SECTOR_SIZE).slice();
+        byte[] expected = new byte[Layout.PER_SECTOR_SIZE];
+        third.get(expected);
+        assertArrayEquals(expected, disk.readSector(102));
+    }
+
+    @Test
+    public void lastSectorIsAddressable() {
+        int last = disk.sectorCount() - 1;
+        disk.writeSector(last, sector(5));
+        assertArrayEquals(sector(5), disk.readSector(last));
+        assertEquals(CAPACITY, image.length());
+    }
+
+    @Test
+    public void unwrittenSectorsBelowTheEndAreNotRead() throws IOException {
+        disk.writeSector(10, sector(1));
+        disk.writeSector(12, sector(2));
+        // sector 11 is a hole inside the image; anything found there was not written by the disk
+        try (RandomAccessFile raf = new RandomAccessFile(image, "rw")) {
+            raf.seek(11L * Layout.PER_SECTOR_SIZE);
+            raf.write(sector(3));
+        }
+
+        ByteBuffer dst = ByteBuffer.allocate(4 * Layout.PER_SECTOR_SIZE);
+        disk.readSectors(10, 4, dst);
+        byte[] expected = new byte[4 * Layout.PER_SECTOR_SIZE];
+        System.arraycopy(sector(1), 0, expected, 0, Layout.PER_SECTOR_SIZE);
+        System.arraycopy(sector(2), 0, expected, 2 * Layout.PER_SECTOR_SIZE, Layout.PER_SECTOR_SIZE);
+        assertArrayEquals(expected, dst.array());
+    }
+
+    @Test
+    public void reopenedImageKeepsItsContent() throws IOException {
+        disk.writeSector(10, sector(1));
+        disk.writeSector(20, sector(2));
+        disk.close();
+
+        disk = new FileDisk(image.getPath(), CAPACITY);
+        assertArrayEquals(sector(1), disk.readSector(10));
+        assertArrayEquals(sector(2), disk.readSector(20));
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(15));
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(30));
+    }
+
+    @Test
+    public void clearForgetsWrittenSectors() throws IOException {
+        disk.writeSector(10, sector(1));
+        disk.clear();
+        assertEquals(0, image.length());
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(10));
+    }
+}
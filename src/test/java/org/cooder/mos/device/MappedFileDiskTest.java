@@ -0,0 +1,74 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import static org.cooder.mos.TestUtils.sector;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.cooder.mos.fs.fat16.Layout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileDiskTest {
+    private static final long CAPACITY = 128 * 1024 * 1024;
+    private static final int LAST_SECTOR = (int) (CAPACITY / Layout.PER_SECTOR_SIZE) - 1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File image;
+    private MappedFileDisk disk;
+
+    @Before
+    public void setUp() throws IOException {
+        image = new File(folder.getRoot(), "mapped.img");
+        disk = new MappedFileDisk(image.getPath(), CAPACITY, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        disk.close();
+    }
+
+    @Test
+    public void clearDropsContentAndKeepsDiskUsable() throws IOException {
+        disk.writeSector(0, sector(1));
+        disk.writeSector(LAST_SECTOR, sector(2));
+        disk.clear();
+
+        assertEquals(CAPACITY, image.length());
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(0));
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(LAST_SECTOR));
+
+        disk.writeSector(LAST_SECTOR, sector(3));
+        assertArrayEquals(sector(3), disk.readSector(LAST_SECTOR));
+        disk.close();
+
+        disk = new MappedFileDisk(image.getPath(), CAPACITY, false);
+        assertArrayEquals(sector(3), disk.readSector(LAST_SECTOR));
+    }
+
+    @Test
+    public void forceOnlyTouchesWrittenSegments() {
+        assertEquals(0, disk.dirtySegmentCount());
+
+        disk.writeSector(LAST_SECTOR, sector(1));
+        assertEquals(1, disk.dirtySegmentCount());
+
+        disk.flush();
+        assertEquals(0, disk.dirtySegmentCount());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.device;
+
+import static org.cooder.mos.TestUtils.sector;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.cooder.mos.fs.fat16.Layout;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RamDiskTest {
+    private static final long CAPACITY = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void imageIsSavedOnCloseAndLoadedOnOpen() throws IOException {
+        String image = new File(folder.getRoot(), "ram.img").getPath();
+
+        RamDisk disk = new RamDisk(image, CAPACITY);
+        disk.writeSector(3, sector(3));
+        disk.writeSector(5000, sector(7));
+        disk.close();
+
+        RamDisk reopened = new RamDisk(image, CAPACITY);
+        assertEquals(CAPACITY / Layout.PER_SECTOR_SIZE, reopened.sectorCount());
+        assertArrayEquals(sector(3), reopened.readSector(3));
+        assertArrayEquals(sector(7), reopened.readSector(5000));
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], reopened.readSector(4));
+        reopened.close();
+    }
+
+    @Test
+    public void snapshotReplacesImageWithoutLeavingTempFiles() throws IOException {
+        File image = new File(folder.getRoot(), "ram.img");
+
+        RamDisk disk = new RamDisk(CAPACITY);
+        disk.writeSector(0, sector(1));
+        disk.snapshot(image.getPath());
+        disk.writeSector(0, sector(2));
+        disk.snapshot(image.getPath());
+
+        assertEquals(CAPACITY, image.length());
+        assertEquals(Arrays.asList("ram.img"), Arrays.asList(folder.getRoot().list()));
+
+        RamDisk loaded = new RamDisk(CAPACITY);
+        loaded.load(image.getPath());
+        assertArrayEquals(sector(2), loaded.readSector(0));
+    }
+}
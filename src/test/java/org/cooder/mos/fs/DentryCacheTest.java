@@ -0,0 +1,83 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.path;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.fat16.DirectoryTreeNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DentryCacheTest {
+    private FileSystem fs = FileSystem.instance;
+    private DentryCache cache = new DentryCache(16);
+    private DirectoryTreeNode root;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+        root = fs.find(new String[0]).node;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void negativeEntrySurvivesUntilCreate() throws IOException {
+        cache.putNegative("/a", root, root.getGeneration());
+        assertTrue(cache.get("/a").isNegative());
+
+        write(fs, "/b", data(10, 1));
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void negativeInsertedAfterRacingCreateIsStale() throws IOException {
+        // the lookup missed, then a create ran before the negative entry was inserted
+        int generation = root.getGeneration();
+        write(fs, "/a", data(10, 1));
+        cache.putNegative("/a", root, generation);
+
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void negativeUnderRemovedDirectoryIsStale() {
+        DirectoryTreeNode dir = fs.createDirectory(fs.find(new String[0]), "d").node;
+        cache.putNegative("/d/x", dir, dir.getGeneration());
+        assertNotNull(cache.get("/d/x"));
+
+        fs.delete(fs.find(path("/d")));
+        assertNull(cache.get("/d/x"));
+    }
+
+    @Test
+    public void positiveForRemovedNodeIsStale() throws IOException {
+        write(fs, "/a", data(10, 1));
+        DirectoryTreeNode node = fs.find(path("/a")).node;
+        cache.put("/a", node);
+        assertSame(node, cache.get("/a").node);
+
+        fs.delete(fs.find(path("/a")));
+        assertNull(cache.get("/a"));
+    }
+}
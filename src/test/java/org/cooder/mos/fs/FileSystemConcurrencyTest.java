@@ -0,0 +1,132 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs;
+
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.fat16.Fsck;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSystemConcurrencyTest {
+    private FileSystem fs = FileSystem.instance;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void parallelWritersInDifferentDirectories() throws Exception {
+        int threads = 4;
+        int files = 50;
+        for (int t = 0; t < threads; t++) {
+            fs.createDirectory(fs.find(new String[0]), "d" + t);
+        }
+
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int dir = t;
+            workers.add(start(() -> {
+                for (int i = 0; i < files; i++) {
+                    write(fs, "/d" + dir + "/f" + i, new byte[100 + i]);
+                }
+            }, error));
+        }
+        join(workers, error);
+
+        for (int t = 0; t < threads; t++) {
+            assertEquals(files, fs.list(fs.find(new String[]{"d" + t})).length);
+            for (int i = 0; i < files; i++) {
+                assertEquals(100 + i, fs.find(new String[]{"d" + t, "f" + i}).getFileSize());
+            }
+        }
+        assertTrue(fs.fsck(false).isClean());
+    }
+
+    @Test
+    public void removeDirectoryRacingCreateLeavesNoOrphans() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int round = 0; round < 200; round++) {
+            fs.createDirectory(fs.find(new String[0]), "d");
+
+            List<Thread> workers = new ArrayList<Thread>();
+            workers.add(start(() -> {
+                try {
+                    write(fs, "/d/f", new byte[100]);
+                } catch (IOException | IllegalStateException e) {
+                    // the directory was removed first
+                }
+            }, error));
+            workers.add(start(() -> {
+                FileDescriptor d = fs.find(new String[]{"d"});
+                try {
+                    fs.delete(d);
+                } catch (IllegalStateException e) {
+                    // the file was created first
+                }
+            }, error));
+            join(workers, error);
+
+            FileDescriptor f = fs.find(new String[]{"d", "f"});
+            if (f != null) {
+                fs.delete(f);
+            }
+            FileDescriptor d = fs.find(new String[]{"d"});
+            if (d != null) {
+                fs.delete(d);
+            }
+        }
+
+        Fsck.Report report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        assertEquals(0, fs.list(fs.find(new String[0])).length);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Thread start(Task task, AtomicReference<Throwable> error) {
+        Thread t = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void join(List<Thread> workers, AtomicReference<Throwable> error) throws Exception {
+        for (Thread t : workers) {
+            t.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+}
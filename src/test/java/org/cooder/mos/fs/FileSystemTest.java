@@ -0,0 +1,150 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.path;
+import static org.cooder.mos.TestUtils.read;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.fat16.Geometry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem fs = FileSystem.instance;
+
+    @Before
+    public void setUp() throws IOException {
+        fs.bootstrap(new RamDisk(64L * 1024 * 1024));
+        fs.format();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void formatRefusedWhileFilesOpen() throws IOException {
+        write(fs, "/a", data(100, 1));
+        FileDescriptor fd = fs.open(path("/a"), IFileSystem.READ);
+        try {
+            fs.format();
+            throw new AssertionError("format with an open file");
+        } catch (IllegalStateException e) {
+            assertArrayEquals(data(100, 1), read(fs, "/a"));
+        } finally {
+            fs.close(fd);
+        }
+
+        fs.format();
+        assertNull(fs.find(path("/a")));
+        assertEquals(0, fs.list(fs.find(new String[0])).length);
+    }
+
+    @Test
+    public void shutdownClosesFilesLeftOpen() throws IOException {
+        String image = new File(folder.getRoot(), "open.img").getPath();
+        fs.shutdown();
+        fs.bootstrap(new RamDisk(image, 64L * 1024 * 1024));
+        fs.format();
+        FileDescriptor fd = fs.open(path("/a"), IFileSystem.WRITE);
+        fs.write(fd, data(100, 3), 0, 100);
+        fs.shutdown();
+
+        // the buffered data reached the image, and nothing of the old mount blocks a format
+        fs.bootstrap(new RamDisk(image, 64L * 1024 * 1024));
+        assertArrayEquals(data(100, 3), read(fs, "/a"));
+        fs.format();
+        assertNull(fs.find(path("/a")));
+    }
+
+    @Test
+    public void missingPathIsFoundOnceCreated() throws IOException {
+        assertNull(fs.find(path("/d/x")));
+        assertNull(fs.find(path("/d")));
+
+        fs.createDirectory(fs.find(new String[0]), "d");
+        assertNull(fs.find(path("/d/x")));
+        write(fs, "/d/x", data(10, 2));
+        assertNotNull(fs.find(path("/d/x")));
+    }
+
+    @Test
+    public void subdirectoryGrowsPastOneCluster() throws IOException {
+        String image = new File(folder.getRoot(), "grow.img").getPath();
+        fs.shutdown();
+        fs.bootstrap(new FileDisk(image, 16L * 1024 * 1024));
+        // one-sector clusters, 16 entries each
+        fs.format(Geometry.forVolume(32 * 1024, 1));
+
+        fs.createDirectory(fs.find(new String[0]), "d");
+        for (int i = 0; i < 100; i++) {
+            write(fs, "/d/f" + i, data(i, i));
+        }
+        for (int i = 10; i < 20; i++) {
+            fs.delete(fs.find(path("/d/f" + i)));
+        }
+        long free = fs.freeSpace();
+        for (int i = 0; i < 10; i++) {
+            write(fs, "/d/g" + i, data(i, i));
+        }
+        // freed slots are reused, only the files' own clusters are taken
+        assertEquals(free - 10 * fs.geometry().clusterSize, fs.freeSpace());
+        fs.shutdown();
+
+        fs.bootstrap(new FileDisk(image, 16L * 1024 * 1024));
+        assertEquals(100, fs.list(fs.find(path("/d"))).length);
+        for (int i = 0; i < 100; i++) {
+            if (i < 10 || i >= 20) {
+                assertArrayEquals(data(i, i), read(fs, "/d/f" + i));
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(data(i, i), read(fs, "/d/g" + i));
+        }
+        assertTrue(fs.fsck(false).isClean());
+    }
+
+    @Test
+    public void lookupRacingCreateDoesNotHideFile() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final String name = "/f" + round;
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread finder = new Thread(() -> {
+                while (!done.get() && fs.find(path(name)) == null) {
+                    // keep missing while the file is being created
+                }
+            });
+            finder.start();
+            write(fs, name, data(10, round));
+            assertNotNull(name, fs.find(path(name)));
+            done.set(true);
+            finder.join();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.cooder.mos.device.RamDisk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClusterChainTest {
+    private RamDisk disk;
+    private FAT16 fat;
+    private int clusterSize;
+
+    @Before
+    public void setUp() {
+        disk = new RamDisk(64L * 1024 * 1024);
+        fat = new FAT16(disk);
+        fat.format();
+        clusterSize = fat.geometry().clusterSize;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fat.close();
+        disk.close();
+    }
+
+    @Test
+    public void buildFollowsFragmentedChain() {
+        int a = fat.nextFreeCluster(-1);
+        int b = fat.nextFreeCluster(-1);
+        int[] expected = new int[11];
+        expected[0] = a;
+        for (int i = 1, pb = b; i < expected.length; i++) {
+            expected[i] = fat.nextFreeCluster(expected[i - 1]);
+            pb = fat.nextFreeCluster(pb);
+        }
+
+        ClusterChain chain = ClusterChain.build(fat, a);
+        assertArrayEquals(expected, clusters(chain));
+        assertEquals(3, chain.indexOf(3L * clusterSize + 5));
+        assertEquals(expected[10], chain.last());
+        try {
+            chain.get(11);
+            throw new AssertionError("read past the chain");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncateAndAppendKeepIndexInOrder() {
+        int head = fat.nextFreeCluster(-1);
+        fat.allocateContiguous(head, 7);
+        ClusterChain chain = ClusterChain.build(fat, head);
+
+        assertTrue(chain.truncateAfter(chain.get(4)));
+        assertEquals(5, chain.length());
+        assertFalse(chain.truncateAfter(head + 6));
+
+        chain.append(head + 100);
+        assertEquals(6, chain.length());
+        assertEquals(head + 100, chain.last());
+    }
+
+    @Test
+    public void positionalIoFollowsCachedChain() throws IOException {
+        DirectoryTreeNode f = fat.createTreeNode(null, "f", false);
+        DirectoryTreeNode g = fat.createTreeNode(null, "g", false);
+        FatFileChannel cf = new FatFileChannel(disk, fat, f);
+        FatFileChannel cg = new FatFileChannel(disk, fat, g);
+        byte[] data = data(8 * clusterSize, 1);
+        // interleave the two files so that neither is contiguous
+        for (int i = 0; i < 8; i++) {
+            cf.write(ByteBuffer.wrap(data, i * clusterSize, clusterSize), (long) i * clusterSize);
+            cg.write(ByteBuffer.wrap(new byte[clusterSize]), (long) i * clusterSize);
+        }
+
+        for (int i : new int[]{7, 0, 5, 2, 6, 1}) {
+            long position = (long) i * clusterSize + 100 * i;
+            assertArrayEquals(Arrays.copyOfRange(data, (int) position, (int) position + 1000), read(cf, position, 1000));
+        }
+        assertChainMatchesFat(f);
+
+        cf.truncate(2 * clusterSize + 10);
+        assertEquals(3, fat.clusterChain(f).length());
+        assertChainMatchesFat(f);
+        assertEquals(-1, cf.read(ByteBuffer.allocate(10), 2 * clusterSize + 10));
+        assertArrayEquals(Arrays.copyOfRange(data, clusterSize, clusterSize + 10), read(cf, clusterSize, 10));
+
+        cf.write(ByteBuffer.wrap(data, 0, 10), 4L * clusterSize);
+        assertEquals(5, fat.clusterChain(f).length());
+        assertChainMatchesFat(f);
+        assertArrayEquals(new byte[10], read(cf, 3L * clusterSize, 10));
+        assertArrayEquals(Arrays.copyOf(data, 10), read(cf, 4L * clusterSize, 10));
+        cf.close();
+        cg.close();
+    }
+
+    private void assertChainMatchesFat(DirectoryTreeNode node) {
+        assertArrayEquals(clusters(ClusterChain.build(fat, node.getStartingCluster())), clusters(fat.clusterChain(node)));
+    }
+
+    private static int[] clusters(ClusterChain chain) {
+        int[] clusters = new int[chain.length()];
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = chain.get(i);
+        }
+        return clusters;
+    }
+
+    private static byte[] read(FatFileChannel channel, long position, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(len);
+        assertEquals(len, channel.read(buffer, position));
+        return buffer.array();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cooder.mos.fs.fat16.Layout.DirectoryEntry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryTreeNodeTest {
+    private static final int SLOTS = 512;
+
+    private DirectoryTreeNode dir;
+
+    @Before
+    public void setUp() {
+        dir = new DirectoryTreeNode(null, null);
+        List<DirectoryTreeNode> nodes = new ArrayList<DirectoryTreeNode>();
+        for (int i = 0; i < SLOTS; i++) {
+            nodes.add(new DirectoryTreeNode(dir, new DirectoryEntry()));
+        }
+        dir.addChildren(nodes);
+        dir.unfold();
+    }
+
+    @Test
+    public void createdChildrenAreFoundByName() {
+        for (int i = 0; i < SLOTS; i++) {
+            dir.create("f" + i, i % 2 == 0);
+        }
+        assertNull(dir.create("full", false));
+
+        for (int i = 0; i < SLOTS; i++) {
+            DirectoryTreeNode node = dir.find("f" + i);
+            assertEquals("f" + i, node.getName());
+            assertEquals(i % 2 == 0, node.isDir());
+        }
+        assertNull(dir.find("missing"));
+    }
+
+    @Test
+    public void lookupUsesStoredNameLength() {
+        DirectoryTreeNode node = dir.create("longfilename", false);
+        assertEquals("longfile", node.getName());
+        assertSame(node, dir.find("longfilename"));
+        assertSame(node, dir.find("longfile"));
+    }
+
+    @Test
+    public void freedSlotIsReused() {
+        for (int i = 0; i < SLOTS; i++) {
+            dir.create("f" + i, false);
+        }
+        DirectoryTreeNode removed = dir.find("f100");
+        removed.reset();
+        assertNull(dir.find("f100"));
+
+        assertSame(removed, dir.create("g", false));
+        assertSame(removed, dir.find("g"));
+        assertNull(dir.create("h", false));
+    }
+
+    @Test
+    public void loadedEntriesAreIndexed() {
+        DirectoryTreeNode other = new DirectoryTreeNode(null, null);
+        List<DirectoryTreeNode> nodes = new ArrayList<DirectoryTreeNode>();
+        for (int i = 0; i < 4; i++) {
+            DirectoryEntry entry = new DirectoryEntry();
+            if (i != 2) {
+                entry.fileName[0] = (byte) ('a' + i);
+            }
+            nodes.add(new DirectoryTreeNode(other, entry));
+        }
+        other.addChildren(nodes);
+        other.unfold();
+
+        assertSame(nodes.get(3), other.find("d"));
+        assertNull(other.find("c"));
+        assertSame(nodes.get(2), other.create("x", false));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cooder.mos.TestUtils.RecordingDisk;
+import org.cooder.mos.device.RamDisk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FAT16Test {
+    /**
+     * 测试期间第二份FAT不会被后台线程写入
+     */
+    private static final long MIRROR_LAG_MILLIS = 60 * 1000;
+
+    private RecordingDisk disk;
+    private FAT16 fat;
+    private Geometry geometry;
+
+    @Before
+    public void setUp() {
+        disk = new RecordingDisk(new RamDisk(64L * 1024 * 1024));
+        fat = new FAT16(disk, MIRROR_LAG_MILLIS);
+        fat.format();
+        geometry = fat.geometry();
+        disk.reset();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fat.close();
+        disk.close();
+    }
+
+    @Test
+    public void onlyDirtyFatSectorIsWritten() {
+        int c = geometry.headClusterCount + 300;
+        fat.writeCluster(c, fat.getEndOfChain());
+
+        BitSet expected = new BitSet();
+        expected.set(geometry.fatRegionStart + c / 256);
+        assertEquals(expected, disk.writtenSectors());
+        assertEquals(fat.getEndOfChain(), onDisk(c));
+    }
+
+    @Test
+    public void commitIntervalBatchesChanges() {
+        fat.setCommitInterval(60 * 1000);
+        int c = geometry.headClusterCount;
+        // the first change after an idle period is committed at once
+        fat.writeCluster(c, c + 1);
+        disk.reset();
+        for (int i = 1; i < 1000; i++) {
+            fat.writeCluster(c + i, c + i + 1);
+        }
+        assertTrue(disk.writtenSectors().isEmpty());
+
+        fat.flush();
+        assertEquals(1, disk.writes().size());
+        assertEquals(c + 500, onDisk(c + 499));
+    }
+
+    @Test
+    public void commitIntervalIsAnUpperBoundWhenIdle() throws InterruptedException {
+        fat.setCommitInterval(100);
+        int c = geometry.headClusterCount + 10;
+        fat.writeCluster(c, fat.getEndOfChain());
+        fat.writeCluster(c + 1, fat.getEndOfChain());
+        assertEquals(FAT16.FREE_CLUSTER, onDisk(c + 1));
+
+        // no further changes, the background thread has to commit them
+        long deadline = System.currentTimeMillis() + 5000;
+        while (onDisk(c + 1) != fat.getEndOfChain() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(fat.getEndOfChain(), onDisk(c));
+        assertEquals(fat.getEndOfChain(), onDisk(c + 1));
+    }
+
+    @Test
+    public void nextFitSkipsJustFreedCluster() {
+        int free = fat.freeClusterCount();
+        int a = fat.nextFreeCluster(-1);
+        fat.writeCluster(a, FAT16.FREE_CLUSTER);
+        assertEquals(free, fat.freeClusterCount());
+
+        int b = fat.nextFreeCluster(-1);
+        assertEquals(a + 1, b);
+        assertEquals(free - 1, fat.freeClusterCount());
+    }
+
+    @Test
+    public void allocationWrapsAroundToFreedClusters() {
+        fat.format(Geometry.forVolume(4096, 8));
+        geometry = fat.geometry();
+        int total = geometry.dataClusterCount();
+        assertEquals(total, fat.freeClusterCount());
+
+        for (int i = 0; i < total; i++) {
+            assertEquals(geometry.headClusterCount + i, fat.nextFreeCluster(-1));
+        }
+        assertEquals(0, fat.freeClusterCount());
+        assertEquals(-1, fat.nextFreeCluster(-1));
+
+        int middle = geometry.headClusterCount + total / 2;
+        fat.writeCluster(middle, FAT16.FREE_CLUSTER);
+        assertEquals(1, fat.freeClusterCount());
+        assertEquals(middle, fat.nextFreeCluster(-1));
+        assertEquals(-1, fat.nextFreeCluster(-1));
+    }
+
+    @Test
+    public void contiguousRunExtendsChain() {
+        int head = fat.nextFreeCluster(-1);
+        int free = fat.freeClusterCount();
+
+        assertEquals(head + 1, fat.allocateContiguous(head, 4));
+        assertEquals(5, fat.clusterCountFrom(head));
+        assertEquals(head + 4, fat.lastClusterFrom(head));
+        assertEquals(free - 4, fat.freeClusterCount());
+        assertEquals(-1, fat.allocateContiguous(head, free + 1));
+    }
+
+    @Test
+    public void chainWalksRunWhileChainGrows() throws Exception {
+        final int length = 1500;
+        final int head = fat.nextFreeCluster(-1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 3; t++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    int seen = 1;
+                    while (!done.get()) {
+                        // the chain only grows, a walk never sees it shorter or broken
+                        int count = fat.clusterCountFrom(head);
+                        assertTrue(count >= seen && count <= length);
+                        int last = fat.lastClusterFrom(head);
+                        assertTrue(fat.isDataCluster(last));
+                        seen = count;
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        int prev = head;
+        for (int i = 1; i < length; i++) {
+            prev = fat.nextFreeCluster(prev);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(length, fat.clusterCountFrom(head));
+        assertEquals(prev, fat.lastClusterFrom(head));
+    }
+
+    @Test
+    public void mirrorLagsUntilSynced() {
+        int c = geometry.headClusterCount + 20;
+        fat.writeCluster(c, fat.getEndOfChain());
+        assertEquals(FAT16.FREE_CLUSTER, onDisk(geometry.mirrorStart, c));
+
+        fat.syncMirror();
+        assertEquals(fat.getEndOfChain(), onDisk(geometry.mirrorStart, c));
+    }
+
+    @Test
+    public void corruptPrimarySectorIsRepairedFromMirror() {
+        int head = fat.nextFreeCluster(-1);
+        fat.allocateContiguous(head, 9);
+        fat.syncMirror();
+        fat.close();
+
+        // cluster value 1 is neither free, a data cluster nor an end marker
+        byte[] garbage = new byte[Layout.PER_SECTOR_SIZE];
+        for (int i = 1; i < garbage.length; i += 2) {
+            garbage[i] = 1;
+        }
+        disk.writeSector(geometry.fatRegionStart + head / 256, garbage);
+
+        fat = new FAT16(disk, MIRROR_LAG_MILLIS);
+        assertEquals(1, fat.getReconciledSectors());
+        assertEquals(10, fat.clusterCountFrom(head));
+        assertEquals(head + 1, onDisk(geometry.fatRegionStart, head));
+    }
+
+    @Test
+    public void staleMirrorSectorIsRewrittenFromPrimary() {
+        int head = fat.nextFreeCluster(-1);
+        fat.allocateContiguous(head, 3);
+        fat.flush();
+        fat.close();
+        // make the mirror copy of the sector stale
+        disk.writeSector(geometry.mirrorStart + head / 256, new byte[Layout.PER_SECTOR_SIZE]);
+
+        fat = new FAT16(disk, MIRROR_LAG_MILLIS);
+        assertEquals(1, fat.getReconciledSectors());
+        assertEquals(4, fat.clusterCountFrom(head));
+        assertEquals(head + 1, onDisk(geometry.mirrorStart, head));
+    }
+
+    /**
+     * @return 主FAT在磁盘上记录的簇值
+     */
+    private int onDisk(int clusterIdx) {
+        return onDisk(geometry.fatRegionStart, clusterIdx);
+    }
+
+    /**
+     * @param fatStart 主FAT或第二份FAT的起始扇区
+     */
+    private int onDisk(int fatStart, int clusterIdx) {
+        ByteBuffer buffer = ByteBuffer.allocate(Layout.PER_SECTOR_SIZE);
+        disk.readSectors(fatStart + clusterIdx / 256, 1, buffer);
+        return buffer.getShort(clusterIdx % 256 * 2) & 0xFFFF;
+    }
+}
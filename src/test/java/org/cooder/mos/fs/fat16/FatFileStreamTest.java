@@ -0,0 +1,195 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.path;
+import static org.cooder.mos.TestUtils.read;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+import org.cooder.mos.TestUtils.RecordingDisk;
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.IFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FatFileStreamTest {
+    private RecordingDisk disk;
+    private FileSystem fs = FileSystem.instance;
+    private Geometry geometry;
+
+    @Before
+    public void setUp() throws IOException {
+        disk = new RecordingDisk(new RamDisk(64L * 1024 * 1024));
+        fs.bootstrap(disk);
+        fs.format();
+        geometry = fs.geometry();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void fileDataMovesInWholeClusters() throws IOException {
+        byte[] data = data(4 * geometry.clusterSize, 1);
+        disk.reset();
+        write(fs, "/f", data);
+        int first = geometry.clusterStartSector(fs.find(path("/f")).getStartingCluster());
+        assertWholeClusters(disk.writes(), first);
+
+        disk.reset();
+        assertArrayEquals(data, read(fs, "/f"));
+        assertTrue(disk.readSectors().get(first));
+    }
+
+    @Test
+    public void partialClusterTailRoundTrips() throws IOException {
+        byte[] data = data(2 * geometry.clusterSize + 777, 2);
+        write(fs, "/f", data);
+        assertArrayEquals(data, read(fs, "/f"));
+    }
+
+    @Test
+    public void sizeHintPreallocatesContiguousClusters() throws IOException {
+        byte[] data = data(4 * geometry.clusterSize, 3);
+        FileDescriptor fd = fs.open(path("/a"), IFileSystem.WRITE, data.length);
+        // allocated while /a is open, lands after the reserved run
+        write(fs, "/b", data(100, 4));
+
+        disk.reset();
+        fs.write(fd, data, 0, data.length);
+        fs.close(fd);
+
+        int first = geometry.clusterStartSector(fs.find(path("/a")).getStartingCluster());
+        BitSet written = disk.writtenSectors();
+        assertTrue(written.nextClearBit(first) >= first + 4 * geometry.sectorsPerCluster);
+        assertArrayEquals(data, read(fs, "/a"));
+        assertArrayEquals(data(100, 4), read(fs, "/b"));
+    }
+
+    @Test
+    public void unusedPreallocationIsReleasedOnClose() throws IOException {
+        long free = fs.freeSpace();
+        FileDescriptor fd = fs.open(path("/a"), IFileSystem.WRITE, 8 * geometry.clusterSize);
+        byte[] data = data(geometry.clusterSize + 1, 5);
+        fs.write(fd, data, 0, data.length);
+        fs.close(fd);
+
+        assertEquals(free - 2 * geometry.clusterSize, fs.freeSpace());
+        assertArrayEquals(data, read(fs, "/a"));
+        assertTrue(fs.fsck(false).isClean());
+    }
+
+    @Test
+    public void sequentialReadFetchesClustersAhead() throws Exception {
+        byte[] data = data(8 * geometry.clusterSize, 6);
+        write(fs, "/f", data);
+        int first = geometry.clusterStartSector(fs.find(path("/f")).getStartingCluster());
+
+        disk.reset();
+        FileDescriptor fd = fs.open(path("/f"), IFileSystem.READ);
+        try {
+            // finishing the first cluster pulls in the second and schedules the third
+            byte[] b = new byte[geometry.clusterSize + 1];
+            assertEquals(b.length, fs.read(fd, b, 0, b.length));
+            int third = first + 2 * geometry.sectorsPerCluster;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!disk.readSectors().get(third) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(disk.readSectors().get(third));
+        } finally {
+            fs.close(fd);
+        }
+        assertArrayEquals(data, read(fs, "/f"));
+    }
+
+    @Test
+    public void readWithoutReadAheadReturnsSameData() throws IOException {
+        byte[] data = data(6 * geometry.clusterSize + 300, 7);
+        write(fs, "/f", data);
+        FatFileInputStream.setMaxReadAheadClusters(0);
+        try {
+            assertArrayEquals(data, read(fs, "/f"));
+        } finally {
+            FatFileInputStream.setMaxReadAheadClusters(4);
+        }
+    }
+
+    @Test
+    public void entryIsWrittenOnFlushNotPerCluster() throws IOException {
+        byte[] data = data(4 * geometry.clusterSize, 8);
+        FileDescriptor fd = fs.open(path("/f"), IFileSystem.WRITE);
+        try {
+            disk.reset();
+            fs.write(fd, data, 0, data.length);
+            assertTrue(disk.writtenSectors().get(geometry.rootDirectoryStart, geometry.dataRegionStart).isEmpty());
+            assertEquals(0, entryOnDisk().fileSize);
+
+            fs.flush(fd);
+            assertEquals(data.length, entryOnDisk().fileSize);
+            fs.write(fd, data, 0, 100);
+        } finally {
+            fs.close(fd);
+        }
+        assertEquals(data.length + 100, entryOnDisk().fileSize);
+    }
+
+    @Test
+    public void entryUpdateIntervalBoundsDeferral() throws Exception {
+        byte[] data = data(geometry.clusterSize, 9);
+        FatFileOutputStream.setEntryUpdateInterval(1);
+        FileDescriptor fd = fs.open(path("/f"), IFileSystem.WRITE);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(5);
+                fs.write(fd, data, 0, data.length);
+            }
+            // the third cluster fills the buffer after the interval, the first two are on disk
+            assertTrue(entryOnDisk().fileSize >= 2 * geometry.clusterSize);
+        } finally {
+            fs.close(fd);
+            FatFileOutputStream.setEntryUpdateInterval(0);
+        }
+        assertEquals(3 * geometry.clusterSize, entryOnDisk().fileSize);
+    }
+
+    /**
+     * @return 根目录第一个目录项在磁盘上的内容
+     */
+    private Layout.DirectoryEntry entryOnDisk() {
+        return Layout.DirectoryEntry.decode(disk.readSector(geometry.rootDirectoryStart), 0);
+    }
+
+    /**
+     * 文件数据区内的每次写入都至少覆盖一个整簇
+     */
+    private void assertWholeClusters(List<int[]> writes, int fileStart) {
+        int sectors = 0;
+        for (int[] w : writes) {
+            if (w[0] >= fileStart) {
+                assertTrue("write of " + w[1] + " sectors at " + w[0], w[1] >= geometry.sectorsPerCluster);
+                sectors += w[1];
+            }
+        }
+        assertTrue(sectors >= 4 * geometry.sectorsPerCluster);
+    }
+}
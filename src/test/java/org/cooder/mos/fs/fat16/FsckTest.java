@@ -0,0 +1,192 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.path;
+import static org.cooder.mos.TestUtils.read;
+import static org.cooder.mos.TestUtils.sector;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.IFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FsckTest {
+    private static final long CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * 4KB簇，每个目录簇128项
+     */
+    private static final Geometry GEOMETRY = Geometry.forVolume((int) (CAPACITY / Layout.PER_SECTOR_SIZE), 8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String image;
+    private FileSystem fs = FileSystem.instance;
+
+    @Before
+    public void setUp() throws IOException {
+        image = new File(folder.getRoot(), "fsck.img").getPath();
+        fs.bootstrap(new FileDisk(image, CAPACITY));
+        fs.format(GEOMETRY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.shutdown();
+    }
+
+    @Test
+    public void crossLinkedFileIsTruncated() throws IOException {
+        byte[] a = data(3 * GEOMETRY.clusterSize, 1);
+        byte[] b = data(3 * GEOMETRY.clusterSize, 2);
+        write(fs, "/a", a);
+        write(fs, "/b", b);
+        fs.shutdown();
+
+        corrupt(fat -> {
+            List<Integer> chainA = chain(fat, fat.findSubTreeNode(fat.root, "a"));
+            List<Integer> chainB = chain(fat, fat.findSubTreeNode(fat.root, "b"));
+            fat.writeCluster(chainB.get(0), chainA.get(1));
+        });
+
+        Fsck.Report report = fs.fsck(false);
+        assertEquals(1, report.crossLinked);
+        assertEquals(2, report.lostClusters);
+
+        report = fs.fsck(true);
+        assertTrue(report.repaired);
+        assertTrue(fs.fsck(false).isClean());
+        assertArrayEquals(a, read(fs, "/a"));
+        assertArrayEquals(Arrays.copyOf(b, GEOMETRY.clusterSize), read(fs, "/b"));
+    }
+
+    @Test
+    public void brokenDirectoryKeepsEntriesInRetainedPrefix() throws IOException {
+        fs.createDirectory(fs.find(new String[0]), "d");
+        int count = 300;
+        for (int i = 0; i < count; i++) {
+            write(fs, "/d/f" + i, data(100, i));
+        }
+        fs.shutdown();
+
+        // unlink the directory's second cluster, its first cluster now points at a free one
+        corrupt(fat -> {
+            List<Integer> dir = chain(fat, fat.findSubTreeNode(fat.root, "d"));
+            assertEquals(3, dir.size());
+            fat.writeCluster(dir.get(1), FAT16.FREE_CLUSTER);
+        });
+
+        Fsck.Report report = fs.fsck(false);
+        assertEquals(1, report.badChains);
+        assertTrue(report.lostClusters > 0);
+
+        fs.fsck(true);
+        assertTrue(fs.fsck(false).isClean());
+
+        int perCluster = GEOMETRY.clusterSize / Layout.PER_DIRECTOR_ENTRY_SIZE;
+        String[] names = fs.list(fs.find(new String[]{"d"}));
+        assertEquals(perCluster, names.length);
+        for (int i = 0; i < perCluster; i++) {
+            assertArrayEquals(data(100, i), read(fs, "/d/f" + i));
+        }
+    }
+
+    @Test
+    public void repairRevokesReleasedDirectoryClusters() throws IOException {
+        RamDisk disk = new RamDisk(CAPACITY);
+        MetadataJournal journal = new MetadataJournal(new File(folder.getRoot(), "fsck.journal").getPath(), disk);
+        FAT16 fat = new FAT16(disk, FAT16.DEFAULT_MIRROR_LAG_MILLIS, journal);
+        try {
+            // one-sector clusters, 16 entries each
+            fat.format(Geometry.forVolume(32 * 1024, 1));
+            Geometry g = fat.geometry();
+            DirectoryTreeNode broken = fat.createTreeNode(null, "b", true);
+            DirectoryTreeNode dropped = fat.createTreeNode(null, "x", true);
+            for (int i = 0; i < 40; i++) {
+                fat.createTreeNode(broken, "f" + i, false);
+            }
+            fat.createTreeNode(dropped, "f", false);
+
+            // b's first cluster points at a free one and its last is lost, x starts at a free cluster
+            List<Integer> chain = chain(fat, broken);
+            assertEquals(3, chain.size());
+            int[] released = {chain.get(1), chain.get(2), dropped.getStartingCluster()};
+            fat.writeCluster(released[0], FAT16.FREE_CLUSTER);
+            fat.writeCluster(released[2], FAT16.FREE_CLUSTER);
+            assertTrue(new Fsck(fat).repair().repaired);
+
+            // the released clusters are reused for file data, which bypasses the journal
+            for (int c : released) {
+                disk.writeSector(g.clusterStartSector(c), sector(c));
+            }
+            journal.checkpoint();
+            for (int c : released) {
+                assertArrayEquals(sector(c), disk.readSector(g.clusterStartSector(c)));
+            }
+            assertTrue(new Fsck(fat).check().isClean());
+        } finally {
+            fat.close();
+            disk.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void repairRefusedWhileFilesOpen() throws IOException {
+        write(fs, "/a", data(100, 1));
+        FileDescriptor fd = fs.open(path("/a"), IFileSystem.APPEND);
+        try {
+            fs.fsck(true);
+        } finally {
+            fs.close(fd);
+        }
+    }
+
+    private void corrupt(Corruption c) throws IOException {
+        FileDisk disk = new FileDisk(image, CAPACITY);
+        FAT16 fat = new FAT16(disk);
+        try {
+            c.apply(fat);
+        } finally {
+            fat.close();
+            disk.close();
+        }
+        fs.bootstrap(new FileDisk(image, CAPACITY));
+    }
+
+    private interface Corruption {
+        void apply(FAT16 fat);
+    }
+
+    private static List<Integer> chain(FAT16 fat, DirectoryTreeNode node) {
+        List<Integer> chain = new ArrayList<Integer>();
+        for (int c = node.getStartingCluster(); fat.isDataCluster(c); c = fat.readCluster(c)) {
+            chain.add(c);
+        }
+        return chain;
+    }
+}
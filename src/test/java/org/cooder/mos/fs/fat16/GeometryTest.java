@@ -0,0 +1,129 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.cooder.mos.TestUtils.data;
+import static org.cooder.mos.TestUtils.path;
+import static org.cooder.mos.TestUtils.read;
+import static org.cooder.mos.TestUtils.write;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.cooder.mos.device.FileDisk;
+import org.cooder.mos.device.RamDisk;
+import org.cooder.mos.fs.FileDescriptor;
+import org.cooder.mos.fs.FileSystem;
+import org.cooder.mos.fs.IFileSystem;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GeometryTest {
+    private static final long CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * 只占磁盘前一半的卷，1KB簇，每个目录簇32项
+     */
+    private static final Geometry GEOMETRY = Geometry.forVolume((int) (CAPACITY / Layout.PER_SECTOR_SIZE / 2), 2);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem fs = FileSystem.instance;
+
+    @Test
+    public void bootSectorRoundTrip() {
+        byte[] boot = new Layout.BootSector(GEOMETRY).toBytes();
+        assertSameGeometry(GEOMETRY, Geometry.fromBootSector(boot, (int) (CAPACITY / Layout.PER_SECTOR_SIZE)));
+    }
+
+    @Test
+    public void formatAndRemount() throws IOException {
+        String image = new File(folder.getRoot(), "geometry.img").getPath();
+        fs.bootstrap(new FileDisk(image, CAPACITY));
+        fs.format(GEOMETRY);
+
+        fs.createDirectory(fs.find(new String[0]), "d");
+        for (int i = 0; i < 40; i++) {
+            write(fs, "/d/f" + i, data(100 * i, i));
+        }
+        byte[] big = data(10 * GEOMETRY.clusterSize + 123, 99);
+        write(fs, "/big", big);
+        fs.shutdown();
+
+        fs.bootstrap(new FileDisk(image, CAPACITY));
+        try {
+            assertSameGeometry(GEOMETRY, fs.geometry());
+            assertEquals((long) GEOMETRY.dataClusterCount() * GEOMETRY.clusterSize, fs.totalSpace());
+
+            assertEquals(40, fs.list(fs.find(new String[]{"d"})).length);
+            for (int i = 0; i < 40; i++) {
+                assertArrayEquals(data(100 * i, i), read(fs, "/d/f" + i));
+            }
+            assertArrayEquals(big, read(fs, "/big"));
+            assertTrue(fs.fsck(false).isClean());
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    @Test
+    public void createFailsCleanlyOnFullVolume() throws IOException {
+        fs.bootstrap(new RamDisk(CAPACITY));
+        try {
+            // 512 byte clusters, a volume of about 500 data clusters
+            fs.format(Geometry.forVolume(1024, 1));
+            fs.createDirectory(fs.find(new String[0]), "d");
+            FileDescriptor fd = fs.open(path("/fill"), IFileSystem.WRITE);
+            try {
+                fs.write(fd, new byte[1024 * 1024], 0, 1024 * 1024);
+                fail("volume should be full");
+            } catch (IllegalStateException e) {
+                // expected
+            } finally {
+                fs.close(fd);
+            }
+            assertEquals(0, fs.freeSpace());
+
+            for (String name : new String[]{"/x", "/d/x"}) {
+                try {
+                    fs.open(path(name), IFileSystem.WRITE);
+                    fail("created " + name + " on a full volume");
+                } catch (IllegalStateException e) {
+                    assertNull(fs.find(path(name)));
+                }
+            }
+            assertEquals(2, fs.list(fs.find(new String[0])).length);
+            assertTrue(fs.fsck(false).isClean());
+
+            // the slots given back are usable once there is space again
+            fs.delete(fs.find(path("/fill")));
+            write(fs, "/d/x", data(100, 1));
+            assertArrayEquals(data(100, 1), read(fs, "/d/x"));
+            assertTrue(fs.fsck(false).isClean());
+        } finally {
+            fs.shutdown();
+        }
+    }
+
+    private static void assertSameGeometry(Geometry expected, Geometry actual) {
+        assertEquals(expected.sectorsPerCluster, actual.sectorsPerCluster);
+        assertEquals(expected.sectorsPerFat, actual.sectorsPerFat);
+        assertEquals(expected.rootEntriesCount, actual.rootEntriesCount);
+        assertEquals(expected.totalSectors, actual.totalSectors);
+        assertEquals(expected.dataRegionStart, actual.dataRegionStart);
+        assertEquals(expected.maxDataCluster, actual.maxDataCluster);
+    }
+}
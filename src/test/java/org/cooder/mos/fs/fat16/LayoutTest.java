@@ -0,0 +1,74 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.cooder.mos.fs.fat16.Layout.DirectoryEntry;
+import org.junit.Test;
+
+public class LayoutTest {
+
+    @Test
+    public void directoryEntryRoundTripsInPlace() {
+        DirectoryEntry entry = entry();
+        byte[] sector = new byte[Layout.PER_SECTOR_SIZE];
+        sector[95] = 7;
+        sector[128] = 9;
+        entry.encode(sector, 96);
+
+        // neighbouring entries are left alone
+        assertEquals(7, sector[95]);
+        assertEquals(9, sector[128]);
+        assertSameEntry(entry, DirectoryEntry.decode(sector, 96));
+    }
+
+    @Test
+    public void directoryEntryFieldLayout() {
+        byte[] data = entry().toBytes();
+        assertEquals(Layout.PER_DIRECTOR_ENTRY_SIZE, data.length);
+        assertEquals('n', data[0]);
+        assertEquals(DirectoryEntry.ATTR_MASK_DIR, data[11]);
+        // big-endian starting cluster and file size
+        assertEquals((byte) 0xFE, data[24]);
+        assertEquals((byte) 0xDC, data[25]);
+        assertEquals((byte) 0x12, data[26]);
+        assertEquals((byte) 0x78, data[29]);
+        assertSameEntry(entry(), DirectoryEntry.from(data));
+    }
+
+    private static DirectoryEntry entry() {
+        DirectoryEntry entry = new DirectoryEntry();
+        System.arraycopy("name1234".getBytes(), 0, entry.fileName, 0, 8);
+        System.arraycopy("txt".getBytes(), 0, entry.extension, 0, 3);
+        entry.attrs = DirectoryEntry.ATTR_MASK_DIR;
+        entry.createTime = 0x1234;
+        entry.createDate = 0x2345;
+        entry.lastAccessDate = 0x3456;
+        entry.lastWriteTime = (short) 0x8765;
+        entry.lastWriteDate = 0x4567;
+        entry.startingCluster = (short) 0xFEDC;
+        entry.fileSize = 0x12345678;
+        return entry;
+    }
+
+    private static void assertSameEntry(DirectoryEntry expected, DirectoryEntry actual) {
+        assertArrayEquals(expected.fileName, actual.fileName);
+        assertArrayEquals(expected.extension, actual.extension);
+        assertEquals(expected.attrs, actual.attrs);
+        assertEquals(expected.createTime, actual.createTime);
+        assertEquals(expected.createDate, actual.createDate);
+        assertEquals(expected.lastAccessDate, actual.lastAccessDate);
+        assertEquals(expected.lastWriteTime, actual.lastWriteTime);
+        assertEquals(expected.lastWriteDate, actual.lastWriteDate);
+        assertEquals(expected.startingCluster, actual.startingCluster);
+        assertEquals(expected.fileSize, actual.fileSize);
+    }
+}
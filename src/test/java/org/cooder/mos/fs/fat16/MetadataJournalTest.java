@@ -0,0 +1,154 @@
+/*
+ * This file is part of MOS
+ * <p>
+ * Copyright (c) 2021 by cooder.org
+ * <p>
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ */
+package org.cooder.mos.fs.fat16;
+
+import static org.cooder.mos.TestUtils.sector;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cooder.mos.device.RamDisk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetadataJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RamDisk disk;
+    private MetadataJournal journal;
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        log = new File(folder.getRoot(), "journal");
+        disk = new RamDisk(1024 * 1024);
+        journal = new MetadataJournal(log.getPath(), disk);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        disk.close();
+    }
+
+    @Test
+    public void committedSectorsAreReadBackBeforeCheckpoint() {
+        commit(10, 1);
+
+        assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], disk.readSector(10));
+        assertArrayEquals(sector(1), read(journal, 10));
+    }
+
+    @Test
+    public void replayAppliesCommittedTransactions() throws IOException {
+        commit(10, 1);
+        commit(11, 2);
+
+        assertEquals(2, replay(crashCopy(0)));
+    }
+
+    @Test
+    public void replayStopsAtTornTail() throws IOException {
+        commit(10, 1);
+        commit(11, 2);
+
+        // cut into the last commit record, as a crash in the middle of the write would
+        RamDisk target = new RamDisk(1024 * 1024);
+        MetadataJournal replayed = new MetadataJournal(crashCopy(3).getPath(), target);
+        try {
+            assertEquals(1, replayed.recover());
+            assertArrayEquals(sector(1), target.readSector(10));
+            assertArrayEquals(new byte[Layout.PER_SECTOR_SIZE], target.readSector(11));
+        } finally {
+            replayed.close();
+            target.close();
+        }
+    }
+
+    @Test
+    public void concurrentCommitsAreAllDurable() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    commit(100 + base + i, base + i);
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+
+        RamDisk target = new RamDisk(1024 * 1024);
+        MetadataJournal replayed = new MetadataJournal(crashCopy(0).getPath(), target);
+        try {
+            assertEquals(threads * perThread, replayed.recover());
+            for (int i = 0; i < threads * perThread; i++) {
+                assertArrayEquals(sector(i), target.readSector(100 + i));
+            }
+        } finally {
+            replayed.close();
+            target.close();
+        }
+    }
+
+    private void commit(int sectorIdx, int seed) {
+        MetadataJournal.Transaction tx = journal.begin();
+        tx.write(sectorIdx, 1, ByteBuffer.wrap(sector(seed)));
+        journal.commit(tx);
+    }
+
+    /**
+     * 复制当前的日志文件，模拟在没有检查点的情况下崩溃
+     *
+     * @param torn 从日志末尾截掉的字节数
+     */
+    private File crashCopy(int torn) throws IOException {
+        File copy = folder.newFile();
+        Files.copy(log.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (RandomAccessFile raf = new RandomAccessFile(copy, "rw")) {
+            raf.setLength(raf.length() - torn);
+        }
+        return copy;
+    }
+
+    private static int replay(File copy) throws IOException {
+        RamDisk target = new RamDisk(1024 * 1024);
+        MetadataJournal replayed = new MetadataJournal(copy.getPath(), target);
+        try {
+            return replayed.recover();
+        } finally {
+            replayed.close();
+            target.close();
+        }
+    }
+
+    private static byte[] read(MetadataJournal journal, int sectorIdx) {
+        ByteBuffer buffer = ByteBuffer.allocate(Layout.PER_SECTOR_SIZE);
+        journal.readSectors(sectorIdx, 1, buffer);
+        return buffer.array();
+    }
+}